@@ -12,4 +12,6 @@ import java.util.Map;
 public class Desired
 {
   public Map<String, Task> tasks = new HashMap<>();
+  // Digest of the bundle inventory as seen by the backend
+  public String bundlesDigest;
 }
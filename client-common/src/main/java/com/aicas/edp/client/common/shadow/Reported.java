@@ -20,6 +20,10 @@ public class Reported
   public String javaRuntimeVersion;
   public String vmAccelerationInfo;
   private List<BundleInfo> bundles;
+  // Order independent digest of the bundle inventory
+  public String bundlesDigest;
+  // Bundles by id, encoded as "id:state:name:version"
+  public Map<String, String> bundleInventory;
   public Map<String, TaskResult> taskResults;
 
   public List<BundleInfo> getBundles()
@@ -9,5 +9,7 @@ public enum TaskStatus
   SUCCEEDED,
   FAILED,
   IN_PROGRESS,
-  REJECTED
+  REJECTED,
+  CANCELLED,
+  TIMED_OUT
 }
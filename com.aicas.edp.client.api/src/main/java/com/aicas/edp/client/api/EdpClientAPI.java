@@ -4,7 +4,17 @@
  *------------------------------------------------------------------------*/
 package com.aicas.edp.client.api;
 
+import java.util.concurrent.CompletionStage;
+
 public interface EdpClientAPI
 {
   public ConnectionState isConnected();
+
+  /**
+   * The service is registered before the client has started, startup
+   * (keystore, shadow, connection) continues in the background.
+   * @return Completes once the client is initialized and connecting,
+   * exceptionally if startup failed
+   */
+  public CompletionStage<Void> ready();
 }
@@ -0,0 +1,27 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.api;
+
+/**
+ * A sensor the client samples and ships as telemetry.
+ * Bundles register sources as OSGi services, a sensor task started from
+ * the backend samples them at its configured rate.
+ */
+public interface SensorSource
+{
+  /**
+   * @return Name of the sensor, unique on the device
+   */
+  public String getName();
+
+  /**
+   * Reads the current value. Called from the sampling thread at the
+   * sampling rate, so it must not block.
+   * @return Current value of the sensor
+   */
+  public double sample()
+    throws
+    Exception;
+}
@@ -33,8 +33,7 @@ public class Activator implements BundleActivator
     Exception
   {
     context = new Context(properties, bundleContext);
-    context.initialize();
-    context.connect();
+    context.start();
   }
 
   @Override
@@ -42,8 +41,7 @@ public class Activator implements BundleActivator
     throws
     Exception
   {
-    context.disconnect();
-    context.shutdown();
+    context.stop();
   }
 
   private Map<String, String> readProperties()
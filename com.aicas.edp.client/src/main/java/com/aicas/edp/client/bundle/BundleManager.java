@@ -72,7 +72,8 @@ public class BundleManager implements Manager
     throws
     AWSIotException
   {
-    context.getIotManager().unsubscribe(urlSigner);
+    if (urlSigner != null)
+      context.getIotManager().unsubscribe(urlSigner);
     urlSigner = null;
     log.trace("Bundle Manager disconnected");
   }
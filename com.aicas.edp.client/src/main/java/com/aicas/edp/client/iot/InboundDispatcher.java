@@ -0,0 +1,244 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.iot;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves handling of inbound messages off the MQTT client callback thread.
+ * Work is striped over single threaded workers by an ordering key, so
+ * messages with the same key (e.g. the same topic) are handled in arrival
+ * order while different keys proceed in parallel.
+ * Each stripe has a bounded queue, the {@link OverflowPolicy} decides what
+ * happens when it is full. None of the policies handles a message outside
+ * its stripe, that would overtake messages of the same key still queued.
+ */
+@Slf4j
+public class InboundDispatcher
+{
+  public enum OverflowPolicy
+  {
+    /**
+     * Block the callback thread until there is room, backpressure to the
+     * MQTT client. Stalls all subscriptions, opt-in only.
+     */
+    BLOCK,
+    /**
+     * Drop the arriving message.
+     */
+    DROP_NEWEST,
+    /**
+     * Drop the oldest queued message of the stripe.
+     */
+    DROP_OLDEST
+  }
+
+  private final Stripe[] stripes;
+  private final OverflowPolicy overflowPolicy;
+  private final ExecutorService executor;
+  private final AtomicLong handled = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong queueNanos = new AtomicLong();
+  private final AtomicLong maxQueueNanos = new AtomicLong();
+  private final AtomicLong handleNanos = new AtomicLong();
+  private final AtomicLong maxHandleNanos = new AtomicLong();
+  private volatile boolean running;
+
+  public InboundDispatcher(int workers, int queueCapacity,
+                           OverflowPolicy overflowPolicy)
+  {
+    this.overflowPolicy = overflowPolicy;
+    this.stripes = new Stripe[Math.max(1, workers)];
+    for (int i = 0; i < stripes.length; i++)
+    {
+      stripes[i] = new Stripe(queueCapacity);
+    }
+    executor = Executors.newFixedThreadPool(stripes.length);
+  }
+
+  public void start()
+  {
+    running = true;
+    for (Stripe stripe : stripes)
+    {
+      executor.submit(stripe::run);
+    }
+    log.trace("Inbound dispatcher started with {} workers, policy {}",
+              stripes.length, overflowPolicy);
+  }
+
+  public void shutdown()
+  {
+    running = false;
+    executor.shutdownNow();
+  }
+
+  /**
+   * Queues a message handler.
+   * @param orderingKey Handlers with equal keys run sequentially in order
+   * @param handler Message handling
+   * @return false if the handler was dropped
+   */
+  public boolean dispatch(String orderingKey, Runnable handler)
+  {
+    if (!running)
+    {
+      handler.run();
+      return true;
+    }
+    Stripe stripe =
+      stripes[(orderingKey.hashCode() & Integer.MAX_VALUE) % stripes.length];
+    Envelope envelope = new Envelope(orderingKey, handler);
+    if (stripe.queue.offer(envelope))
+      return true;
+
+    switch (overflowPolicy)
+    {
+    case BLOCK:
+      try
+      {
+        stripe.queue.put(envelope);
+        return true;
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        dropped.incrementAndGet();
+        return false;
+      }
+    case DROP_OLDEST:
+      Envelope oldest = stripe.queue.poll();
+      if (oldest != null)
+      {
+        dropped.incrementAndGet();
+        log.warn("Inbound queue full, dropped oldest message of '{}'",
+                 oldest.orderingKey);
+      }
+      if (stripe.queue.offer(envelope))
+        return true;
+      dropped.incrementAndGet();
+      return false;
+    case DROP_NEWEST:
+    default:
+      dropped.incrementAndGet();
+      log.warn("Inbound queue full, dropped message of '{}'", orderingKey);
+      return false;
+    }
+  }
+
+  public int getQueueDepth()
+  {
+    int depth = 0;
+    for (Stripe stripe : stripes)
+    {
+      depth += stripe.queue.size();
+    }
+    return depth;
+  }
+
+  public long getHandledCount()
+  {
+    return handled.get();
+  }
+
+  public long getDroppedCount()
+  {
+    return dropped.get();
+  }
+
+  /**
+   * @return Average time messages waited in the queue
+   */
+  public long getAverageQueueNanos()
+  {
+    long count = handled.get();
+    return count == 0 ? 0 : queueNanos.get() / count;
+  }
+
+  public long getMaxQueueNanos()
+  {
+    return maxQueueNanos.get();
+  }
+
+  /**
+   * @return Average time spent in message handlers
+   */
+  public long getAverageHandleNanos()
+  {
+    long count = handled.get();
+    return count == 0 ? 0 : handleNanos.get() / count;
+  }
+
+  public long getMaxHandleNanos()
+  {
+    return maxHandleNanos.get();
+  }
+
+  private void handle(Envelope envelope)
+  {
+    long started = System.nanoTime();
+    long waited = started - envelope.enqueuedNanos;
+    try
+    {
+      envelope.handler.run();
+    }
+    catch (Throwable t)
+    {
+      log.error("Failed to handle inbound message of '{}'",
+                envelope.orderingKey, t);
+    }
+    long elapsed = System.nanoTime() - started;
+    handled.incrementAndGet();
+    queueNanos.addAndGet(waited);
+    maxQueueNanos.accumulateAndGet(waited, Math::max);
+    handleNanos.addAndGet(elapsed);
+    maxHandleNanos.accumulateAndGet(elapsed, Math::max);
+  }
+
+  private static class Envelope
+  {
+    final String orderingKey;
+    final Runnable handler;
+    final long enqueuedNanos = System.nanoTime();
+
+    Envelope(String orderingKey, Runnable handler)
+    {
+      this.orderingKey = orderingKey;
+      this.handler = handler;
+    }
+  }
+
+  private class Stripe
+  {
+    final BlockingQueue<Envelope> queue;
+
+    Stripe(int capacity)
+    {
+      queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    void run()
+    {
+      while (running)
+      {
+        try
+        {
+          handle(queue.take());
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+}
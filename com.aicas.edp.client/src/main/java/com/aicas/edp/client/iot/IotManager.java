@@ -15,6 +15,8 @@ import com.amazonaws.services.iot.client.AWSIotTimeoutException;
 import com.amazonaws.services.iot.client.AWSIotTopic;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.File;
+import java.io.IOException;
 import java.security.KeyStore;
 
 import static com.aicas.edp.client.util.Util.createWillMessage;
@@ -22,8 +24,14 @@ import static com.aicas.edp.client.util.Util.createWillMessage;
 @Slf4j
 public class IotManager implements Manager
 {
+  private static final long PUBLISH_FLUSH_TIMEOUT_MS = 5000;
+  private static final String NAMED_SHADOW_INFIX = "/shadow/name";
+  private static final String THING_TOPIC_PREFIX = "$aws/things/";
   private final Context context;
   private IotClient iotClient;
+  private PublishPipeline publishPipeline;
+  private TopicRouter topicRouter;
+  private InboundDispatcher inboundDispatcher;
 
   public IotManager(Context context)
   {
@@ -43,6 +51,44 @@ public class IotManager implements Manager
     iotClient.setMaxConnectionRetries(Integer.MAX_VALUE);
     iotClient.setMaxRetryDelay(5 * 60 * 1000);
     iotClient.setWillMessage(createWillMessage(cfg.getThingName()));
+    publishPipeline =
+      new PublishPipeline(iotClient, cfg.getPublishQueueCapacity(),
+                          cfg.getPublishBatchSize(),
+                          cfg.getPublishBatchIntervalMs());
+    PublishOutbox outbox =
+      createOutbox(cfg, "outbox", cfg.getOutboxMaxBytes());
+    if (outbox != null)
+    {
+      publishPipeline.setOutbox(outbox);
+      PublishOutbox telemetryOutbox =
+        createOutbox(cfg, "outbox-telemetry",
+                     cfg.getOutboxTelemetryMaxBytes());
+      if (telemetryOutbox != null)
+      {
+        publishPipeline.setTelemetryOutbox(telemetryOutbox,
+                                           cfg.getSensorTelemetryTopic());
+      }
+      iotClient.registerConnectionSuccessHandler(
+        publishPipeline::onConnectionSuccess);
+    }
+    publishPipeline.start();
+    inboundDispatcher =
+      new InboundDispatcher(cfg.getInboundWorkers(),
+                            cfg.getInboundQueueCapacity(),
+                            cfg.getInboundOverflowPolicy());
+    inboundDispatcher.start();
+    if (cfg.isTopicRouterEnabled())
+    {
+      topicRouter = new TopicRouter();
+      topicRouter.setInboundDispatcher(inboundDispatcher);
+      topicRouter.addRoute(cfg.getCommonTopicPrefix());
+      topicRouter.addRoute(THING_TOPIC_PREFIX + thingId + "/jobs");
+      if (cfg.isShadowPartitioningEnabled())
+      {
+        topicRouter.addRoute(
+          THING_TOPIC_PREFIX + thingId + NAMED_SHADOW_INFIX);
+      }
+    }
     log.trace("Iot Manager initialized");
   }
 
@@ -59,6 +105,10 @@ public class IotManager implements Manager
     {
       // we should not catch timeout exception since there is no timeout
     }
+    if (topicRouter != null)
+    {
+      topicRouter.subscribe(iotClient);
+    }
     log.trace("Iot Manager is connected: {}", iotClient.getConnectionStatus());
   }
 
@@ -67,6 +117,23 @@ public class IotManager implements Manager
     throws
     AWSIotException
   {
+    try
+    {
+      // Let pending job and task updates out before the connection goes down
+      if (!publishPipeline.flush(PUBLISH_FLUSH_TIMEOUT_MS))
+      {
+        log.warn("{} messages still pending on disconnect",
+                 publishPipeline.getQueueDepth());
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    if (topicRouter != null)
+    {
+      topicRouter.unsubscribe(iotClient);
+    }
     try
     {
       iotClient.disconnect(0, false);
@@ -81,19 +148,90 @@ public class IotManager implements Manager
   @Override
   public void shutdown()
   {
+    publishPipeline.shutdown();
+    inboundDispatcher.shutdown();
   }
 
   public void publish(AWSIotMessage message)
     throws
     AWSIotException
   {
-    iotClient.publish(message);
+    publish(message, null);
+  }
+
+  /**
+   * Hands the message over to the publish pipeline.
+   * @param message Message to publish
+   * @param coalescingKey Pending messages with the same topic and key are
+   *                      replaced by this one, null disables coalescing
+   * @throws AWSIotException if the queue of the pipeline is full, like a
+   * publish the MQTT client could not accept
+   */
+  public void publish(AWSIotMessage message, String coalescingKey)
+    throws
+    AWSIotException
+  {
+    if (publishPipeline == null || !publishPipeline.isRunning())
+    {
+      iotClient.publish(message);
+      return;
+    }
+    if (!publishPipeline.offer(message, coalescingKey))
+    {
+      throw new AWSIotException(
+        "Publish queue is full, dropped message to " + message.getTopic());
+    }
   }
 
+  private PublishOutbox createOutbox(Configuration cfg, String name,
+                                     long maxBytes)
+  {
+    if (!cfg.isOutboxEnabled())
+    {
+      return null;
+    }
+    File directory = context.getBundleContext().getDataFile(name);
+    if (directory == null)
+    {
+      log.warn("No persistent storage available, outbox disabled");
+      return null;
+    }
+    PublishOutbox outbox =
+      new PublishOutbox(directory, cfg.getOutboxSegmentSize(),
+                        maxBytes, cfg.getOutboxTtlMs(),
+                        cfg.getOutboxTopicTtls(), iotClient::topicFilterMatch);
+    try
+    {
+      outbox.open();
+      return outbox;
+    }
+    catch (IOException e)
+    {
+      log.error("Failed to open outbox in {}, outbox disabled", directory, e);
+      return null;
+    }
+  }
+
+  public PublishPipeline getPublishPipeline()
+  {
+    return publishPipeline;
+  }
+
+  /**
+   * Subscribes a listener. Listeners below a route prefix are only
+   * registered with the topic router, which already holds the wildcard
+   * subscription for them.
+   * @param subscriber Topic listener
+   */
   public void subscribe(AWSIotTopic subscriber)
     throws
     AWSIotException
   {
+    if (topicRouter != null && topicRouter.covers(subscriber.getTopic()))
+    {
+      topicRouter.register(subscriber);
+      return;
+    }
     iotClient.subscribe(subscriber);
   }
 
@@ -101,9 +239,27 @@ public class IotManager implements Manager
     throws
     AWSIotException
   {
+    // E.g. the manager of the subscriber did not get to connect
+    if (subscriber == null)
+      return;
+    if (topicRouter != null && topicRouter.covers(subscriber.getTopic()))
+    {
+      topicRouter.unregister(subscriber);
+      return;
+    }
     iotClient.unsubscribe(subscriber);
   }
 
+  public InboundDispatcher getInboundDispatcher()
+  {
+    return inboundDispatcher;
+  }
+
+  public TopicRouter getTopicRouter()
+  {
+    return topicRouter;
+  }
+
   public void registerConnectionSuccessHandler(Runnable onConnectionSuccess)
   {
     this.iotClient.registerConnectionSuccessHandler(onConnectionSuccess);
@@ -125,6 +281,9 @@ public class IotManager implements Manager
 
   public AWSIotConnectionStatus getConnectionStatus()
   {
+    // Not created before the asynchronous startup has initialized the client
+    if (iotClient == null)
+      return AWSIotConnectionStatus.DISCONNECTED;
     return iotClient.getConnectionStatus();
   }
 }
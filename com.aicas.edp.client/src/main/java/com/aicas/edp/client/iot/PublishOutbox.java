@@ -0,0 +1,541 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.iot;
+
+import com.aicas.edp.client.util.AsyncIotMsg;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiPredicate;
+
+/**
+ * Store-and-forward log for messages published while the client is offline.
+ * Messages are appended to fixed size, memory-mapped segment files and
+ * replayed in append order after reconnection.
+ * Record layout: length (int), expiry time (long), qos (byte),
+ * topic length (short), topic, payload. The length is written last, so a
+ * record is only visible once complete, and is negated once the record has
+ * been published.
+ * {@link #poll(int)} hands out records without consuming them,
+ * {@link #commit(int)} consumes the ones that were published and leaves the
+ * others in place to be handed out again, in the same order.
+ */
+@Slf4j
+public class PublishOutbox
+{
+  private static final String SEGMENT_PREFIX = "outbox-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final int HEADER_SIZE = 4 + 8 + 1 + 2;
+  private final File directory;
+  private final int segmentSize;
+  private final int maxSegments;
+  private final long defaultTtlMs;
+  private final Map<String, Long> topicTtls;
+  private final BiPredicate<String, String> topicFilterMatcher;
+  private final Deque<Segment> segments = new ArrayDeque<>();
+  // Records handed out by the last poll, in order, until committed
+  private final List<Taken> taken = new ArrayList<>();
+  private long nextSegmentId;
+  private long stored;
+  private long replayed;
+  private long expired;
+  private long dropped;
+
+  /**
+   * @param directory Directory for segment files
+   * @param segmentSize Size of a single segment file in bytes
+   * @param maxBytes Cap for all segments, oldest segments are dropped first
+   * @param defaultTtlMs Time to live of messages without topic specific TTL
+   * @param topicTtls Time to live per MQTT topic filter
+   * @param topicFilterMatcher Matches topic filter (first) against topic
+   */
+  public PublishOutbox(File directory, int segmentSize, long maxBytes,
+                       long defaultTtlMs, Map<String, Long> topicTtls,
+                       BiPredicate<String, String> topicFilterMatcher)
+  {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+    this.maxSegments = (int) Math.max(1, maxBytes / segmentSize);
+    this.defaultTtlMs = defaultTtlMs;
+    this.topicTtls = topicTtls;
+    this.topicFilterMatcher = topicFilterMatcher;
+  }
+
+  /**
+   * Maps existing segments and recovers messages that were not replayed
+   * before the last shutdown.
+   */
+  public synchronized void open()
+    throws
+    IOException
+  {
+    if (!directory.isDirectory() && !directory.mkdirs())
+    {
+      throw new IOException("Cannot create outbox directory " + directory);
+    }
+    File[] files = directory.listFiles(
+      (dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(
+        SEGMENT_SUFFIX));
+    if (files == null)
+    {
+      files = new File[0];
+    }
+    Arrays.sort(files, (a, b) -> Long.compare(segmentId(a), segmentId(b)));
+    int recovered = 0;
+    for (File file : files)
+    {
+      Segment segment = Segment.open(file, segmentId(file), segmentSize);
+      recovered += segment.recover();
+      nextSegmentId = segment.id + 1;
+      if (segment.isConsumed())
+      {
+        segment.delete();
+      }
+      else
+      {
+        segments.addLast(segment);
+      }
+    }
+    log.debug("Outbox opened in {}, {} messages recovered", directory,
+              recovered);
+  }
+
+  public synchronized void close()
+  {
+    for (Segment segment : segments)
+    {
+      segment.close();
+    }
+    segments.clear();
+    taken.clear();
+  }
+
+  /**
+   * Appends a message to the log.
+   * @param message Message to store
+   * @return false if the message does not fit into a segment
+   */
+  public synchronized boolean append(AWSIotMessage message)
+  {
+    byte[] topic = message.getTopic().getBytes(StandardCharsets.UTF_8);
+    byte[] payload = message.getPayload() == null ? new byte[0] :
+      message.getPayload();
+    int length = HEADER_SIZE + topic.length + payload.length;
+    if (length > segmentSize || topic.length > Short.MAX_VALUE)
+    {
+      log.warn("Message to '{}' is too large for the outbox ({} bytes)",
+               message.getTopic(), length);
+      return false;
+    }
+    try
+    {
+      Segment active = segments.peekLast();
+      if (active == null || !active.hasRoom(length))
+      {
+        if (active != null)
+        {
+          active.force();
+        }
+        active = Segment.create(directory, nextSegmentId++, segmentSize);
+        segments.addLast(active);
+        enforceCap();
+      }
+      long expiresAt = System.currentTimeMillis() + ttlOf(message.getTopic());
+      active.write(length, expiresAt, (byte) message.getQos().getValue(),
+                   topic, payload);
+      stored++;
+      return true;
+    }
+    catch (IOException e)
+    {
+      log.error("Failed to store message to '{}' in outbox",
+                message.getTopic(), e);
+      return false;
+    }
+  }
+
+  /**
+   * Hands out the oldest messages for publishing, expired ones are skipped.
+   * They stay in the log until {@link #commit(int)}.
+   * @param max Maximum number of messages to return
+   * @return Messages in append order
+   */
+  public synchronized List<AWSIotMessage> poll(int max)
+  {
+    List<AWSIotMessage> messages = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (Segment segment : segments)
+    {
+      Record record;
+      while (messages.size() < max && (record = segment.next()) != null)
+      {
+        boolean live = record.expiresAt >= now;
+        taken.add(new Taken(segment, record.pos, live));
+        if (live)
+        {
+          messages.add(new AsyncIotMsg(record.topic,
+                                       AWSIotQos.valueOf(record.qos),
+                                       record.payload));
+        }
+      }
+      if (messages.size() >= max)
+        break;
+    }
+    return messages;
+  }
+
+  /**
+   * Consumes the first messages of the last poll and the expired records
+   * before them, the remaining ones are handed out again by the next poll.
+   * @param published Number of messages of the last poll that were
+   *                  published, in order
+   */
+  public synchronized void commit(int published)
+  {
+    int committed = 0;
+    for (Taken record : taken)
+    {
+      if (record.live)
+      {
+        if (committed == published)
+          break;
+        committed++;
+        replayed++;
+      }
+      else
+      {
+        expired++;
+      }
+      if (!record.segment.closed)
+        record.segment.consume(record.pos);
+    }
+    taken.clear();
+    for (Segment segment : segments)
+      segment.rewind();
+    while (!segments.isEmpty() && segments.peekFirst().isConsumed())
+      segments.removeFirst().delete();
+  }
+
+  /**
+   * @return true if there is no message to hand out
+   */
+  public synchronized boolean isEmpty()
+  {
+    for (Segment segment : segments)
+    {
+      if (segment.hasUnread())
+        return false;
+    }
+    return true;
+  }
+
+  public synchronized long getSizeBytes()
+  {
+    long size = 0;
+    for (Segment segment : segments)
+    {
+      size += segment.writePos;
+    }
+    return size;
+  }
+
+  public synchronized long getStoredCount()
+  {
+    return stored;
+  }
+
+  public synchronized long getReplayedCount()
+  {
+    return replayed;
+  }
+
+  public synchronized long getExpiredCount()
+  {
+    return expired;
+  }
+
+  public synchronized long getDroppedCount()
+  {
+    return dropped;
+  }
+
+  private long ttlOf(String topic)
+  {
+    for (Map.Entry<String, Long> ttl : topicTtls.entrySet())
+    {
+      if (topicFilterMatcher.test(ttl.getKey(), topic))
+        return ttl.getValue();
+    }
+    return defaultTtlMs;
+  }
+
+  private void enforceCap()
+  {
+    while (segments.size() > maxSegments)
+    {
+      Segment oldest = segments.removeFirst();
+      int lost = oldest.liveRecords();
+      dropped += lost;
+      oldest.delete();
+      log.warn("Outbox size cap reached, dropped {} oldest messages", lost);
+    }
+  }
+
+  private static long segmentId(File file)
+  {
+    String name = file.getName();
+    try
+    {
+      return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                           name.length() - SEGMENT_SUFFIX.length()));
+    }
+    catch (NumberFormatException e)
+    {
+      return -1;
+    }
+  }
+
+  private static class Taken
+  {
+    final Segment segment;
+    final int pos;
+    final boolean live;
+
+    Taken(Segment segment, int pos, boolean live)
+    {
+      this.segment = segment;
+      this.pos = pos;
+      this.live = live;
+    }
+  }
+
+  private static class Record
+  {
+    final int pos;
+    final long expiresAt;
+    final int qos;
+    final String topic;
+    final byte[] payload;
+
+    Record(int pos, long expiresAt, int qos, String topic, byte[] payload)
+    {
+      this.pos = pos;
+      this.expiresAt = expiresAt;
+      this.qos = qos;
+      this.topic = topic;
+      this.payload = payload;
+    }
+  }
+
+  private static class Segment
+  {
+    final long id;
+    final File file;
+    final RandomAccessFile raf;
+    final MappedByteBuffer buffer;
+    int writePos;
+    // First record that is not consumed
+    int readPos;
+    // Next record to hand out, ahead of readPos while records are taken
+    int peekPos;
+    boolean closed;
+
+    private Segment(long id, File file, int size)
+      throws
+      IOException
+    {
+      this.id = id;
+      this.file = file;
+      this.raf = new RandomAccessFile(file, "rw");
+      this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    static Segment create(File directory, long id, int size)
+      throws
+      IOException
+    {
+      return new Segment(id, new File(directory,
+                                      SEGMENT_PREFIX + id + SEGMENT_SUFFIX),
+                         size);
+    }
+
+    static Segment open(File file, long id, int size)
+      throws
+      IOException
+    {
+      return new Segment(id, file, size);
+    }
+
+    /**
+     * Scans the segment, positions reader at the first live record and
+     * writer after the last complete record.
+     * @return Number of live records
+     */
+    int recover()
+    {
+      int pos = 0;
+      int live = 0;
+      readPos = -1;
+      while (pos + HEADER_SIZE <= buffer.capacity())
+      {
+        int length = buffer.getInt(pos);
+        int size = Math.abs(length);
+        // Zero marks the end, anything else invalid is a torn write
+        if (size < HEADER_SIZE || pos + size > buffer.capacity())
+          break;
+        if (length > 0)
+        {
+          live++;
+          if (readPos < 0)
+            readPos = pos;
+        }
+        pos += size;
+      }
+      writePos = pos;
+      if (readPos < 0)
+        readPos = writePos;
+      peekPos = readPos;
+      return live;
+    }
+
+    boolean hasRoom(int length)
+    {
+      return writePos + length <= buffer.capacity();
+    }
+
+    void write(int length, long expiresAt, byte qos, byte[] topic,
+               byte[] payload)
+    {
+      int pos = writePos;
+      buffer.position(pos + 4);
+      buffer.putLong(expiresAt);
+      buffer.put(qos);
+      buffer.putShort((short) topic.length);
+      buffer.put(topic);
+      buffer.put(payload);
+      // Publish the record by writing its length last
+      buffer.putInt(pos, length);
+      writePos = pos + length;
+    }
+
+    /**
+     * @return Next record not handed out yet, null if there is none
+     */
+    Record next()
+    {
+      while (peekPos < writePos)
+      {
+        int pos = peekPos;
+        int length = buffer.getInt(pos);
+        peekPos = pos + Math.abs(length);
+        if (length < 0)
+          continue;
+        long expiresAt = buffer.getLong(pos + 4);
+        byte qos = buffer.get(pos + 12);
+        short topicLength = buffer.getShort(pos + 13);
+        byte[] topic = new byte[topicLength];
+        byte[] payload = new byte[length - HEADER_SIZE - topicLength];
+        buffer.position(pos + HEADER_SIZE);
+        buffer.get(topic);
+        buffer.get(payload);
+        return new Record(pos, expiresAt, qos,
+                          new String(topic, StandardCharsets.UTF_8), payload);
+      }
+      return null;
+    }
+
+    /**
+     * Marks a record as published.
+     */
+    void consume(int pos)
+    {
+      int length = buffer.getInt(pos);
+      if (length > 0)
+        buffer.putInt(pos, -length);
+      while (readPos < writePos && buffer.getInt(readPos) < 0)
+        readPos += -buffer.getInt(readPos);
+    }
+
+    /**
+     * Hands out the records that are not consumed again.
+     */
+    void rewind()
+    {
+      peekPos = readPos;
+    }
+
+    boolean hasUnread()
+    {
+      return peekPos < writePos;
+    }
+
+    boolean isConsumed()
+    {
+      return readPos >= writePos;
+    }
+
+    int liveRecords()
+    {
+      int live = 0;
+      for (int pos = readPos; pos < writePos; )
+      {
+        int length = buffer.getInt(pos);
+        if (length > 0)
+          live++;
+        pos += Math.abs(length);
+      }
+      return live;
+    }
+
+    void force()
+    {
+      buffer.force();
+    }
+
+    void close()
+    {
+      closed = true;
+      force();
+      try
+      {
+        raf.close();
+      }
+      catch (IOException e)
+      {
+        log.warn("Failed to close outbox segment {}", file, e);
+      }
+    }
+
+    void delete()
+    {
+      closed = true;
+      try
+      {
+        raf.close();
+      }
+      catch (IOException e)
+      {
+        log.warn("Failed to close outbox segment {}", file, e);
+      }
+      if (!file.delete())
+      {
+        log.warn("Failed to delete outbox segment {}", file);
+      }
+    }
+  }
+}
@@ -0,0 +1,479 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.iot;
+
+import com.amazonaws.services.iot.client.AWSIotConnectionStatus;
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound stage between the client components and the MQTT client.
+ * Any thread may enqueue messages, a single publisher thread drains them in
+ * batches and pauses between batches, so bursts are paced.
+ * A message enqueued with a coalescing key replaces a still pending message
+ * with the same topic and key, only the latest one is published.
+ * While the client is not connected, messages go to the optional
+ * {@link PublishOutbox} and are replayed first once the connection is back.
+ * Sensor telemetry can go to an outbox of its own, so a burst of samples
+ * never evicts task results or job updates, and is replayed last.
+ */
+@Slf4j
+public class PublishPipeline
+{
+  private final IotClient iotClient;
+  private final int capacity;
+  private final int batchSize;
+  private final long batchIntervalMs;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private final Condition drained = lock.newCondition();
+  // Insertion ordered, a coalesced message keeps the slot of the message it replaces
+  private final LinkedHashMap<String, AWSIotMessage> pending =
+    new LinkedHashMap<>();
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final AtomicLong sequence = new AtomicLong();
+  private final AtomicLong enqueued = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong stored = new AtomicLong();
+  private PublishOutbox outbox;
+  private PublishOutbox telemetryOutbox;
+  private String telemetryTopic;
+  private volatile boolean running;
+  private boolean publishing;
+  // Outbox of the batch being published, null for pending messages
+  private PublishOutbox replaying;
+
+  public PublishPipeline(IotClient iotClient, int capacity, int batchSize,
+                         long batchIntervalMs)
+  {
+    this.iotClient = iotClient;
+    this.capacity = capacity;
+    this.batchSize = batchSize;
+    this.batchIntervalMs = batchIntervalMs;
+  }
+
+  /**
+   * Enables store-and-forward of messages published while disconnected.
+   * Must be called before {@link #start()}.
+   * @param outbox Opened outbox
+   */
+  public void setOutbox(PublishOutbox outbox)
+  {
+    this.outbox = outbox;
+  }
+
+  /**
+   * Stores sensor telemetry separately from other messages.
+   * Must be called after {@link #setOutbox(PublishOutbox)} and before
+   * {@link #start()}.
+   * @param outbox Opened outbox with its own cap
+   * @param topicFilter Topic filter of the telemetry messages
+   */
+  public void setTelemetryOutbox(PublishOutbox outbox, String topicFilter)
+  {
+    this.telemetryOutbox = outbox;
+    this.telemetryTopic = topicFilter;
+  }
+
+  public void start()
+  {
+    running = true;
+    executor.submit(this::publishLoop);
+    log.trace("Publish pipeline started, capacity: {}, batch size: {}",
+              capacity, batchSize);
+  }
+
+  public void shutdown()
+  {
+    running = false;
+    lock.lock();
+    try
+    {
+      notEmpty.signalAll();
+      drained.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+    executor.shutdownNow();
+    lock.lock();
+    try
+    {
+      if (outbox != null)
+      {
+        // Keep what is still pending for the next start
+        log.trace("Storing {} pending messages in outbox", pending.size());
+        pending.values().forEach(this::store);
+        pending.clear();
+        outbox.close();
+        if (telemetryOutbox != null)
+          telemetryOutbox.close();
+      }
+      else
+      {
+        log.trace("{} pending messages discarded", pending.size());
+      }
+    }
+    finally
+    {
+      lock.unlock();
+    }
+    log.trace("Publish pipeline stopped");
+  }
+
+  /**
+   * Wakes up the publisher thread to replay stored messages.
+   */
+  public void onConnectionSuccess()
+  {
+    lock.lock();
+    try
+    {
+      notEmpty.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  public boolean isRunning()
+  {
+    return running;
+  }
+
+  /**
+   * Enqueues a message for publishing.
+   * @param message Message to publish
+   * @param coalescingKey Messages with the same topic and key supersede each
+   *                      other while pending, null disables coalescing
+   * @return false if the queue is full and the message was dropped
+   */
+  public boolean offer(AWSIotMessage message, String coalescingKey)
+  {
+    String key = coalescingKey == null ?
+      "#" + sequence.incrementAndGet() :
+      message.getTopic() + "|" + coalescingKey;
+    lock.lock();
+    try
+    {
+      if (pending.containsKey(key))
+      {
+        pending.put(key, message);
+        coalesced.incrementAndGet();
+        log.trace("Coalesced pending message on '{}'", message.getTopic());
+        return true;
+      }
+      if (pending.size() >= capacity)
+      {
+        dropped.incrementAndGet();
+        log.warn("Publish queue is full ({}), dropping message to '{}'",
+                 capacity, message.getTopic());
+        return false;
+      }
+      pending.put(key, message);
+      enqueued.incrementAndGet();
+      notEmpty.signal();
+      return true;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Blocks until all pending messages are handed to the MQTT client.
+   * @param timeoutMs Maximum time to wait
+   * @return true if the queue was drained in time
+   */
+  public boolean flush(long timeoutMs)
+    throws
+    InterruptedException
+  {
+    long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    lock.lock();
+    try
+    {
+      while (running && (!pending.isEmpty() || publishing))
+      {
+        if (nanos <= 0)
+          return false;
+        nanos = drained.awaitNanos(nanos);
+      }
+      return pending.isEmpty();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  public int getQueueDepth()
+  {
+    lock.lock();
+    try
+    {
+      return pending.size();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  public long getEnqueuedCount()
+  {
+    return enqueued.get();
+  }
+
+  public long getCoalescedCount()
+  {
+    return coalesced.get();
+  }
+
+  public long getDroppedCount()
+  {
+    return dropped.get();
+  }
+
+  public long getPublishedCount()
+  {
+    return published.get();
+  }
+
+  public long getFailedCount()
+  {
+    return failed.get();
+  }
+
+  public long getStoredCount()
+  {
+    return stored.get();
+  }
+
+  public PublishOutbox getOutbox()
+  {
+    return outbox;
+  }
+
+  private void publishLoop()
+  {
+    while (running)
+    {
+      try
+      {
+        List<AWSIotMessage> batch = takeBatch();
+        if (replaying != null)
+        {
+          replay(replaying, batch);
+        }
+        else
+        {
+          for (AWSIotMessage message : batch)
+          {
+            publish(message);
+          }
+        }
+        log.trace(
+          "Published batch of {}, pending: {}, coalesced: {}, dropped: {}",
+          batch.size(), getQueueDepth(), coalesced.get(), dropped.get());
+        batchDone();
+        // Pause between batches, messages arriving meanwhile can coalesce
+        if (batchIntervalMs > 0)
+          Thread.sleep(batchIntervalMs);
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      catch (Throwable t)
+      {
+        log.error("Unexpected error in publish pipeline", t);
+        batchDone();
+      }
+    }
+  }
+
+  private List<AWSIotMessage> takeBatch()
+    throws
+    InterruptedException
+  {
+    lock.lock();
+    try
+    {
+      while (pending.isEmpty() && !canReplay())
+      {
+        notEmpty.await();
+      }
+      PublishOutbox source = replaySource();
+      if (source != null)
+      {
+        // Stored messages are older than anything pending, they go first
+        List<AWSIotMessage> replay = source.poll(batchSize);
+        if (!replay.isEmpty())
+        {
+          log.debug("Replaying {} stored messages", replay.size());
+          publishing = true;
+          replaying = source;
+          return replay;
+        }
+      }
+      List<AWSIotMessage> batch =
+        new ArrayList<>(Math.min(batchSize, pending.size()));
+      Iterator<Map.Entry<String, AWSIotMessage>> it =
+        pending.entrySet().iterator();
+      while (it.hasNext() && batch.size() < batchSize)
+      {
+        batch.add(it.next().getValue());
+        it.remove();
+      }
+      publishing = true;
+      replaying = null;
+      return batch;
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  private void batchDone()
+  {
+    lock.lock();
+    try
+    {
+      publishing = false;
+      if (pending.isEmpty())
+        drained.signalAll();
+    }
+    finally
+    {
+      lock.unlock();
+    }
+  }
+
+  private boolean isConnected()
+  {
+    return iotClient.getConnectionStatus() == AWSIotConnectionStatus.CONNECTED;
+  }
+
+  private boolean canReplay()
+  {
+    return replaySource() != null;
+  }
+
+  /**
+   * @return Outbox to replay from, telemetry only after everything else
+   */
+  private PublishOutbox replaySource()
+  {
+    if (outbox == null || !isConnected())
+      return null;
+    if (!outbox.isEmpty())
+      return outbox;
+    if (telemetryOutbox != null && !telemetryOutbox.isEmpty())
+      return telemetryOutbox;
+    return null;
+  }
+
+  private void publish(AWSIotMessage message)
+  {
+    if (outbox != null && !isConnected())
+    {
+      store(message);
+      return;
+    }
+    try
+    {
+      iotClient.publish(message);
+      published.incrementAndGet();
+    }
+    catch (AWSIotException e)
+    {
+      if (outbox != null && !isConnected())
+      {
+        log.debug("Connection lost while publishing to '{}', storing message",
+                  message.getTopic());
+        store(message);
+        return;
+      }
+      failed.incrementAndGet();
+      log.error("Failed to publish message to '{}'", message.getTopic(), e);
+    }
+  }
+
+  /**
+   * Publishes stored messages and removes them from the outbox. Replay stops
+   * at the first message that fails for lack of connection, it stays in
+   * place with the ones after it, so the order is kept.
+   */
+  private void replay(PublishOutbox source, List<AWSIotMessage> batch)
+  {
+    int done = 0;
+    try
+    {
+      for (AWSIotMessage message : batch)
+      {
+        if (!isConnected())
+          break;
+        try
+        {
+          iotClient.publish(message);
+          published.incrementAndGet();
+        }
+        catch (AWSIotException e)
+        {
+          if (!isConnected())
+          {
+            log.debug("Connection lost while replaying to '{}'",
+                      message.getTopic());
+            break;
+          }
+          failed.incrementAndGet();
+          log.error("Failed to publish message to '{}'", message.getTopic(),
+                    e);
+        }
+        done++;
+      }
+    }
+    finally
+    {
+      source.commit(done);
+    }
+  }
+
+  private void store(AWSIotMessage message)
+  {
+    boolean telemetry = telemetryOutbox != null &&
+      iotClient.topicFilterMatch(telemetryTopic, message.getTopic());
+    if ((telemetry ? telemetryOutbox : outbox).append(message))
+    {
+      stored.incrementAndGet();
+    }
+    else
+    {
+      dropped.incrementAndGet();
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.iot;
+
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.amazonaws.services.iot.client.AWSIotTopic;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes inbound messages of a few wildcard subscriptions to the topic
+ * listeners of the client.
+ * The client subscribes once per route prefix ({@code prefix/#}) instead of
+ * once per listener, listeners below a prefix are only registered locally in
+ * a topic trie that supports {@code +} and {@code #} filters.
+ */
+@Slf4j
+public class TopicRouter
+{
+  private static final String SINGLE_LEVEL = "+";
+  private static final String MULTI_LEVEL = "#";
+  private final List<RouteSubscription> routes = new ArrayList<>();
+  private final Node root = new Node();
+  private final AtomicLong dispatched = new AtomicLong();
+  private final AtomicLong unrouted = new AtomicLong();
+  private final AtomicLong dispatchNanos = new AtomicLong();
+  private final AtomicLong maxDispatchNanos = new AtomicLong();
+  private InboundDispatcher inboundDispatcher;
+
+  /**
+   * Adds a route prefix, all topics below it are delivered via a single
+   * {@code prefix/#} subscription.
+   * @param prefix Topic prefix without trailing slash
+   */
+  public void addRoute(String prefix)
+  {
+    routes.add(new RouteSubscription(prefix));
+  }
+
+  /**
+   * Hands routed messages to the dispatcher instead of running listeners on
+   * the MQTT client callback thread.
+   * @param inboundDispatcher Dispatcher, messages are ordered per topic
+   */
+  public void setInboundDispatcher(InboundDispatcher inboundDispatcher)
+  {
+    this.inboundDispatcher = inboundDispatcher;
+  }
+
+  /**
+   * @param topicFilter Topic filter of a listener
+   * @return true if the filter lies below one of the route prefixes
+   */
+  public boolean covers(String topicFilter)
+  {
+    for (RouteSubscription route : routes)
+    {
+      if (topicFilter.startsWith(route.prefix + "/"))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Subscribes the wildcard subscriptions of all routes.
+   * @param iotClient Client to subscribe with
+   */
+  void subscribe(IotClient iotClient)
+    throws
+    AWSIotException
+  {
+    for (RouteSubscription route : routes)
+    {
+      iotClient.subscribe(route);
+      log.debug("Subscribed route '{}'", route.getTopic());
+    }
+  }
+
+  void unsubscribe(IotClient iotClient)
+    throws
+    AWSIotException
+  {
+    for (RouteSubscription route : routes)
+    {
+      iotClient.unsubscribe(route);
+    }
+  }
+
+  public void register(AWSIotTopic listener)
+  {
+    Node node = root;
+    for (String level : listener.getTopic().split("/", -1))
+    {
+      node = node.children.computeIfAbsent(level, l -> new Node());
+    }
+    node.listeners.add(listener);
+    log.trace("Registered listener for '{}'", listener.getTopic());
+  }
+
+  public void unregister(AWSIotTopic listener)
+  {
+    Node node = root;
+    for (String level : listener.getTopic().split("/", -1))
+    {
+      node = node.children.get(level);
+      if (node == null)
+        return;
+    }
+    node.listeners.remove(listener);
+  }
+
+  /**
+   * Delivers a message to all listeners whose filter matches its topic.
+   * @param message Inbound message
+   */
+  public void dispatch(AWSIotMessage message)
+  {
+    long started = System.nanoTime();
+    List<AWSIotTopic> matched = match(message.getTopic());
+    if (matched.isEmpty())
+    {
+      unrouted.incrementAndGet();
+      log.debug("No listener for message on '{}'", message.getTopic());
+      return;
+    }
+    for (AWSIotTopic listener : matched)
+    {
+      try
+      {
+        listener.onMessage(message);
+      }
+      catch (Throwable t)
+      {
+        log.error("Listener for '{}' failed on message from '{}'",
+                  listener.getTopic(), message.getTopic(), t);
+      }
+    }
+    long elapsed = System.nanoTime() - started;
+    dispatched.incrementAndGet();
+    dispatchNanos.addAndGet(elapsed);
+    maxDispatchNanos.accumulateAndGet(elapsed, Math::max);
+  }
+
+  List<AWSIotTopic> match(String topic)
+  {
+    List<AWSIotTopic> matched = new ArrayList<>();
+    collect(root, topic.split("/", -1), 0, matched);
+    return matched;
+  }
+
+  public long getDispatchedCount()
+  {
+    return dispatched.get();
+  }
+
+  public long getUnroutedCount()
+  {
+    return unrouted.get();
+  }
+
+  public long getAverageDispatchNanos()
+  {
+    long count = dispatched.get();
+    return count == 0 ? 0 : dispatchNanos.get() / count;
+  }
+
+  public long getMaxDispatchNanos()
+  {
+    return maxDispatchNanos.get();
+  }
+
+  private static void collect(Node node, String[] levels, int index,
+                              List<AWSIotTopic> matched)
+  {
+    Node multi = node.children.get(MULTI_LEVEL);
+    if (multi != null)
+    {
+      matched.addAll(multi.listeners);
+    }
+    if (index == levels.length)
+    {
+      matched.addAll(node.listeners);
+      return;
+    }
+    Node exact = node.children.get(levels[index]);
+    if (exact != null)
+    {
+      collect(exact, levels, index + 1, matched);
+    }
+    Node single = node.children.get(SINGLE_LEVEL);
+    if (single != null)
+    {
+      collect(single, levels, index + 1, matched);
+    }
+  }
+
+  private static class Node
+  {
+    final Map<String, Node> children = new ConcurrentHashMap<>();
+    final List<AWSIotTopic> listeners = new CopyOnWriteArrayList<>();
+  }
+
+  private class RouteSubscription extends AWSIotTopic
+  {
+    final String prefix;
+
+    RouteSubscription(String prefix)
+    {
+      super(prefix + "/" + MULTI_LEVEL, AWSIotQos.QOS0);
+      this.prefix = prefix;
+    }
+
+    @Override
+    public void onMessage(AWSIotMessage message)
+    {
+      if (inboundDispatcher != null)
+      {
+        inboundDispatcher.dispatch(message.getTopic(), () -> dispatch(message));
+      }
+      else
+      {
+        dispatch(message);
+      }
+    }
+
+    @Override
+    public void onFailure()
+    {
+      super.onFailure();
+      log.error("Route subscription '{}' failed. errorCode: {}, errorMessage: {}",
+                topic, getErrorCode(), getErrorMessage());
+    }
+  }
+}
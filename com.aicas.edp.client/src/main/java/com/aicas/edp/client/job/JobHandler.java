@@ -126,7 +126,8 @@ class JobHandler
   }
 
   /**
-   * Helper blocking method, executes a list of Tasks sequentially.
+   * Helper blocking method, executes the Tasks of a job along their
+   * dependencies.
    *
    * @param jobDocument Job Document that contains tasks
    * @return whether Job execution succeeded or not
@@ -136,7 +137,10 @@ class JobHandler
     try
     {
       List<TaskResult> results =
-        context.getTaskManager().executeAsync(jobDocument.tasks).join();
+        context.getTaskManager().executeAsync(jobDocument.tasks,
+                                              jobDocument.dependsOn,
+                                              jobDocument.failurePolicy)
+          .join();
       log.debug("Job execution is finished {}", results);
       return results.stream()
         .allMatch(tr -> TaskStatus.SUCCEEDED.equals(tr.getStatus()));
@@ -163,7 +167,8 @@ class JobHandler
       AWSIotMessage msg = new AsyncIotMsg(
         UPDATE_JOB_PREFIX + jobId + UPDATE_JOB_POSTFIX, AWSIotQos.QOS0,
         payload);
-      context.getIotManager().publish(msg);
+      // A newer status of the same job supersedes a pending one
+      context.getIotManager().publish(msg, jobId);
     }
     catch (AWSIotException e)
     {
@@ -19,29 +19,27 @@ public class JobManager implements Manager
   static final String PREFIX = "$aws/things/";
   private static final String GET_JOB_ACCEPTED_POSTFIX = "/jobs/+/get/accepted";
   private static final String NOTIFY_NEXT_JOB_POSTFIX = "/jobs/notify-next";
-  private final String GET_JOB_ACCEPTED_TOPIC;
-  private final String NOTIFY_NEXT_JOB_TOPIC;
   private final Context context;
-  private final JobHandler jobHandler;
-  private final String thingName;
+  private JobHandler jobHandler;
+  private String thingName;
   private final Set<AWSIotTopic> subscribers = new HashSet<>();
 
 
   public JobManager(Context context)
   {
     this.context = context;
-    thingName = context.getConfiguration().getThingName();
-    jobHandler = new JobHandler(context);
-    GET_JOB_ACCEPTED_TOPIC = PREFIX + thingName + GET_JOB_ACCEPTED_POSTFIX;
-    NOTIFY_NEXT_JOB_TOPIC = PREFIX + thingName + NOTIFY_NEXT_JOB_POSTFIX;
     log.trace("Job Manager created");
   }
 
   @Override
   public void initialize()
   {
-    subscribers.add(new JobListener(this, GET_JOB_ACCEPTED_TOPIC));
-    subscribers.add(new JobListener(this, NOTIFY_NEXT_JOB_TOPIC));
+    thingName = context.getConfiguration().getThingName();
+    jobHandler = new JobHandler(context);
+    subscribers.add(
+      new JobListener(this, PREFIX + thingName + GET_JOB_ACCEPTED_POSTFIX));
+    subscribers.add(
+      new JobListener(this, PREFIX + thingName + NOTIFY_NEXT_JOB_POSTFIX));
     subscribers.add(new RejectedJobListener(thingName));
   }
 
@@ -85,7 +83,8 @@ public class JobManager implements Manager
   @Override
   public void shutdown()
   {
-    jobHandler.shutdown();
+    if (jobHandler != null)
+      jobHandler.shutdown();
   }
 
   void handleJobDescriptionAsync(String stringPayload)
@@ -9,6 +9,7 @@ import com.aicas.edp.api_version.UnsupportedVersionException;
 import com.aicas.edp.client.common.task.Task;
 import com.aicas.edp.client.job.model.JobDescription;
 import com.aicas.edp.client.job.model.JobPayload;
+import com.aicas.edp.client.task.TaskGraph;
 import com.aicas.edp.client.task.TaskManager;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -63,6 +64,15 @@ public class JobValidator
         log.error("Task validation failed");
         return false;
       }
+      try
+      {
+        TaskGraph.checkDependencies(job.tasks, job.dependsOn);
+      }
+      catch (IllegalArgumentException e)
+      {
+        log.error("Invalid task dependencies: {}", e.getMessage());
+        return false;
+      }
       return true;
     }
     catch (Exception e)
@@ -5,10 +5,21 @@
 package com.aicas.edp.client.job.model;
 
 import com.aicas.edp.client.common.task.Task;
+import com.aicas.edp.client.task.TaskGraph;
 
 import java.util.List;
+import java.util.Map;
 
 public class JobPayload
 {
   public List<Task> tasks;
+  /**
+   * Ids of the tasks each task id depends on. When absent, a task depends on
+   * the earlier tasks touching the same bundles.
+   */
+  public Map<String, List<String>> dependsOn;
+  /**
+   * Handling of failed tasks, skipping their dependents by default
+   */
+  public TaskGraph.FailurePolicy failurePolicy;
 }
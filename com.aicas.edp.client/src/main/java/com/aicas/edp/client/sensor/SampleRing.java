@@ -0,0 +1,99 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.sensor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring buffer of samples for one producer and one consumer.
+ * Samples are kept in parallel primitive arrays, so sampling allocates
+ * nothing. A full ring drops the new sample and counts it.
+ */
+public class SampleRing
+{
+  private final int capacity;
+  private final int mask;
+  private final int[] sensors;
+  private final long[] timestamps;
+  private final double[] values;
+  // Next slot to read, advanced by the consumer only
+  private final AtomicLong head = new AtomicLong();
+  // Next slot to write, advanced by the producer only
+  private final AtomicLong tail = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * @param capacity Minimum number of samples, rounded up to a power of two
+   */
+  public SampleRing(int capacity)
+  {
+    int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+    this.capacity = size;
+    mask = size - 1;
+    sensors = new int[size];
+    timestamps = new long[size];
+    values = new double[size];
+  }
+
+  /**
+   * Called by the producer only.
+   * @return false if the ring is full and the sample was dropped
+   */
+  public boolean offer(int sensor, long timestamp, double value)
+  {
+    long t = tail.get();
+    if (t - head.get() >= capacity)
+    {
+      dropped.incrementAndGet();
+      return false;
+    }
+    int slot = (int) t & mask;
+    sensors[slot] = sensor;
+    timestamps[slot] = timestamp;
+    values[slot] = value;
+    // Publishes the slot to the consumer
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  /**
+   * Called by the consumer only.
+   * @param max Maximum number of samples to take
+   * @return Number of samples passed to the consumer
+   */
+  public int drain(Consumer consumer, int max)
+  {
+    long h = head.get();
+    int count = (int) Math.min(tail.get() - h, max);
+    for (int i = 0; i < count; i++)
+    {
+      int slot = (int) (h + i) & mask;
+      consumer.accept(sensors[slot], timestamps[slot], values[slot]);
+    }
+    // Frees the slots for the producer
+    head.lazySet(h + count);
+    return count;
+  }
+
+  public int size()
+  {
+    return (int) (tail.get() - head.get());
+  }
+
+  public int getCapacity()
+  {
+    return capacity;
+  }
+
+  public long getDroppedCount()
+  {
+    return dropped.get();
+  }
+
+  public interface Consumer
+  {
+    void accept(int sensor, long timestamp, double value);
+  }
+}
@@ -0,0 +1,40 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.sensor;
+
+import java.util.List;
+
+/**
+ * Configuration of a sensor task, the JSON {@code config} of a START task.
+ */
+public class SensorConfig
+{
+  /**
+   * Names of the sensors to sample, null or empty for all
+   */
+  public List<String> sensors;
+  /**
+   * Samples per second of each sensor
+   */
+  public int rateHz = 10;
+  /**
+   * Maximum number of samples per message
+   */
+  public int batchSize = 256;
+  /**
+   * Maximum time a sample waits for its message
+   */
+  public long batchMs = 1000;
+  /**
+   * Samples buffered between sampling and batching
+   */
+  public int ringSize = 4096;
+
+  public boolean isValid()
+  {
+    return rateHz > 0 && rateHz <= 1000000 && batchSize > 0 && batchMs > 0 &&
+           ringSize > 0;
+  }
+}
@@ -0,0 +1,260 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.sensor;
+
+import com.aicas.edp.client.api.SensorSource;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Samples sensors into a {@link SampleRing} and ships them in batches.
+ * The sampling thread is the only producer of the ring, the batching thread
+ * its only consumer. A batch is published once it holds
+ * {@link SensorConfig#batchSize} samples or its oldest sample is
+ * {@link SensorConfig#batchMs} old. The batching thread parks until then,
+ * the sampling thread wakes it once the ring holds the samples it waits
+ * for. Stopping drains the ring and publishes the last batch.
+ */
+@Slf4j
+public class SensorSession
+{
+  private static final JsonFactory JSON = new JsonFactory();
+  private final SensorConfig config;
+  private final List<SensorSource> sources;
+  private final Publisher publisher;
+  private final SampleRing ring;
+  private final ScheduledExecutorService sampler;
+  private final Thread batcher;
+  private final AtomicLong sampled = new AtomicLong();
+  private final AtomicLong sampleErrors = new AtomicLong();
+  private final AtomicLong published = new AtomicLong();
+  private final AtomicLong messages = new AtomicLong();
+  private final AtomicLong publishErrors = new AtomicLong();
+  private volatile boolean running;
+  // Samples the batching thread waits for, 0 while it is not parked
+  private volatile int wanted;
+  private long started;
+  private long stopped;
+  // Batch under construction, used by the batching thread only
+  private ByteArrayOutputStream buffer;
+  private JsonGenerator batch;
+  private int batchCount;
+  private long batchStarted;
+
+  /**
+   * Publishes one batch of samples.
+   */
+  public interface Publisher
+  {
+    void publish(byte[] payload)
+      throws
+      Exception;
+  }
+
+  public SensorSession(SensorConfig config, List<SensorSource> sources,
+                       Publisher publisher)
+  {
+    this.config = config;
+    this.sources = sources;
+    this.publisher = publisher;
+    ring = new SampleRing(config.ringSize);
+    sampler = Executors.newSingleThreadScheduledExecutor(
+      r -> new Thread(r, "edp-sensor-sampler"));
+    batcher = new Thread(this::runBatcher, "edp-sensor-batcher");
+  }
+
+  public synchronized void start()
+  {
+    running = true;
+    started = System.currentTimeMillis();
+    batcher.start();
+    sampler.scheduleAtFixedRate(this::sample, 0,
+                                TimeUnit.SECONDS.toMicros(1) / config.rateHz,
+                                TimeUnit.MICROSECONDS);
+    log.info("Sampling {} sensors at {} Hz", sources.size(), config.rateHz);
+  }
+
+  /**
+   * Stops sampling, drains the ring and publishes the last batch.
+   * @param timeoutMs Time to wait for the last batch
+   */
+  public synchronized void stop(long timeoutMs)
+    throws
+    InterruptedException
+  {
+    if (!running)
+      return;
+    sampler.shutdown();
+    sampler.awaitTermination(timeoutMs, TimeUnit.MILLISECONDS);
+    running = false;
+    LockSupport.unpark(batcher);
+    batcher.join(timeoutMs);
+    stopped = System.currentTimeMillis();
+    log.info("Sampling stopped, {}", getStatistics());
+  }
+
+  public boolean isRunning()
+  {
+    return running;
+  }
+
+  public long getSampledCount()
+  {
+    return sampled.get();
+  }
+
+  public long getDroppedCount()
+  {
+    return ring.getDroppedCount();
+  }
+
+  public long getPublishedCount()
+  {
+    return published.get();
+  }
+
+  public long getMessageCount()
+  {
+    return messages.get();
+  }
+
+  /**
+   * @return Throughput and drop counters, e.g. for a task result
+   */
+  public synchronized String getStatistics()
+  {
+    long end = stopped != 0 ? stopped : System.currentTimeMillis();
+    double seconds = Math.max(1, end - started) / 1000.0;
+    return String.format(
+      "sampled=%d, dropped=%d, sampleErrors=%d, published=%d, messages=%d, " +
+      "publishErrors=%d, samplesPerSecond=%.1f", sampled.get(),
+      ring.getDroppedCount(), sampleErrors.get(), published.get(),
+      messages.get(), publishErrors.get(), sampled.get() / seconds);
+  }
+
+  private void sample()
+  {
+    long now = System.currentTimeMillis();
+    for (int i = 0; i < sources.size(); i++)
+    {
+      try
+      {
+        // Dropped samples are counted by the ring
+        if (ring.offer(i, now, sources.get(i).sample()))
+          sampled.incrementAndGet();
+      }
+      catch (Exception e)
+      {
+        if (sampleErrors.getAndIncrement() == 0)
+          log.warn("Failed to sample sensor {}", sources.get(i).getName(), e);
+      }
+    }
+    int waitingFor = wanted;
+    if (waitingFor > 0 && ring.size() >= waitingFor)
+      LockSupport.unpark(batcher);
+  }
+
+  private void runBatcher()
+  {
+    while (running || ring.size() > 0)
+    {
+      ring.drain(this::add, config.batchSize - batchCount);
+      if (batchCount >= config.batchSize ||
+          batchCount > 0 &&
+          System.currentTimeMillis() - batchStarted >= config.batchMs)
+        flush();
+      park();
+    }
+    if (batchCount > 0)
+      flush();
+  }
+
+  /**
+   * Parks until the batch is full or due, an empty batch until the first
+   * sample arrives.
+   */
+  private void park()
+  {
+    int missing = batchCount == 0 ? 1 : config.batchSize - batchCount;
+    wanted = missing;
+    // Samples offered before wanted was set did not wake the thread
+    if (running && ring.size() < missing)
+    {
+      if (batchCount == 0)
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(config.batchMs));
+      else
+        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(
+          batchStarted + config.batchMs - System.currentTimeMillis()));
+    }
+    wanted = 0;
+  }
+
+  private void add(int sensor, long timestamp, double value)
+  {
+    try
+    {
+      if (batch == null)
+        open();
+      batch.writeStartArray();
+      batch.writeNumber(sensor);
+      batch.writeNumber(timestamp);
+      batch.writeNumber(value);
+      batch.writeEndArray();
+      batchCount++;
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void open()
+    throws
+    IOException
+  {
+    buffer = new ByteArrayOutputStream(64 + config.batchSize * 32);
+    batch = JSON.createGenerator(buffer);
+    batch.writeStartObject();
+    batch.writeArrayFieldStart("sensors");
+    for (SensorSource source : sources)
+      batch.writeString(source.getName());
+    batch.writeEndArray();
+    batch.writeArrayFieldStart("samples");
+    batchStarted = System.currentTimeMillis();
+  }
+
+  private void flush()
+  {
+    int count = batchCount;
+    try
+    {
+      batch.writeEndArray();
+      batch.writeEndObject();
+      batch.close();
+      publisher.publish(buffer.toByteArray());
+      published.addAndGet(count);
+      messages.incrementAndGet();
+    }
+    catch (Exception e)
+    {
+      publishErrors.incrementAndGet();
+      log.warn("Failed to publish {} sensor samples", count, e);
+    }
+    batch = null;
+    buffer = null;
+    batchCount = 0;
+  }
+}
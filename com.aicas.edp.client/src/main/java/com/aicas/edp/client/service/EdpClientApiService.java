@@ -9,6 +9,8 @@ import com.aicas.edp.client.api.EdpClientAPI;
 import com.aicas.edp.client.util.Context;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.concurrent.CompletionStage;
+
 @Slf4j
 public class EdpClientApiService implements EdpClientAPI
 {
@@ -39,4 +41,10 @@ public class EdpClientApiService implements EdpClientAPI
     return ConnectionState.valueOf(
       context.getIotManager().getConnectionStatus().name());
   }
+
+  @Override
+  public CompletionStage<Void> ready()
+  {
+    return context.ready();
+  }
 }
@@ -5,10 +5,8 @@
 package com.aicas.edp.client.shadow;
 
 import com.aicas.edp.client.common.bundle.BundleInfo;
-import com.aicas.edp.client.common.bundle.BundleState;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.DeserializationContext;
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
 
 import java.io.IOException;
@@ -31,17 +29,17 @@ public class BundleInfoDeserializer extends StdDeserializer<BundleInfo>
     throws
     IOException
   {
-    JsonNode node = p.getCodec().readTree(p);
-    String[] bundleInfoParts = node.asText().split(":");
-
-    if (bundleInfoParts.length <= 0)
+    String entry = p.getValueAsString();
+    if (entry == null || entry.isEmpty())
       return null;
-
-    BundleInfo bundleInfo = new BundleInfo();
-    bundleInfo.id = Long.valueOf(bundleInfoParts[0]);
-    bundleInfo.state = BundleState.get(Integer.valueOf(bundleInfoParts[1]));
-    bundleInfo.symbolicName = bundleInfoParts[2];
-    bundleInfo.version = bundleInfoParts[3];
-    return bundleInfo;
+    try
+    {
+      return BundleInventoryCodec.decode(entry);
+    }
+    catch (IllegalArgumentException e)
+    {
+      throw context.weirdStringException(entry, BundleInfo.class,
+                                         e.getMessage());
+    }
   }
 }
@@ -25,7 +25,6 @@ public class BundleInfoSerializer extends StdSerializer<BundleInfo>
     throws
     IOException
   {
-    gen.writeString(
-      value.id + ":" + value.state.code() + ":" + value.symbolicName + ":" + value.version);
+    gen.writeString(BundleInventoryCodec.encode(value));
   }
 }
@@ -0,0 +1,91 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.shadow;
+
+import com.aicas.edp.client.common.bundle.BundleInfo;
+import com.aicas.edp.client.util.PersistentMap;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Immutable bundle inventory, encoded entries by bundle id together with
+ * their rolling digest.
+ * Reported as an object keyed by bundle id, so a shadow update only carries
+ * the entries that changed.
+ */
+public final class BundleInventory
+{
+  public static final BundleInventory EMPTY =
+    new BundleInventory(PersistentMap.empty(), 0);
+  private final PersistentMap<String, String> entries;
+  private final long digest;
+
+  private BundleInventory(PersistentMap<String, String> entries, long digest)
+  {
+    this.entries = entries;
+    this.digest = digest;
+  }
+
+  /**
+   * @param bundles Complete bundle list
+   * @return Inventory of the list, the digest is only updated for entries
+   * that changed
+   */
+  public BundleInventory update(List<BundleInfo> bundles)
+  {
+    PersistentMap<String, String> updated = entries;
+    long updatedDigest = digest;
+    Set<String> present = new HashSet<>();
+    for (BundleInfo bundle : bundles)
+    {
+      String id = String.valueOf(bundle.id);
+      String entry = BundleInventoryCodec.encode(bundle);
+      present.add(id);
+      String previous = updated.get(id);
+      if (!entry.equals(previous))
+      {
+        if (previous != null)
+          updatedDigest -= BundleInventoryCodec.hash(previous);
+        updatedDigest += BundleInventoryCodec.hash(entry);
+        updated = updated.plus(id, entry);
+      }
+    }
+    if (present.size() < updated.size())
+    {
+      for (Map.Entry<String, String> removed : entries.toMap().entrySet())
+      {
+        if (!present.contains(removed.getKey()))
+        {
+          updatedDigest -= BundleInventoryCodec.hash(removed.getValue());
+          updated = updated.minus(removed.getKey());
+        }
+      }
+    }
+    if (updated == entries)
+      return this;
+    return new BundleInventory(updated, updatedDigest);
+  }
+
+  public String getDigest()
+  {
+    return BundleInventoryCodec.formatDigest(digest);
+  }
+
+  /**
+   * @return Encoded entries by bundle id
+   */
+  public Map<String, String> toMap()
+  {
+    return entries.toMap();
+  }
+
+  public int size()
+  {
+    return entries.size();
+  }
+}
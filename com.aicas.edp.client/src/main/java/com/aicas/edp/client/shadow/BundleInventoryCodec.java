@@ -0,0 +1,95 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.shadow;
+
+import com.aicas.edp.client.common.bundle.BundleInfo;
+import com.aicas.edp.client.common.bundle.BundleState;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encoding of bundle inventory entries as {@code "id:state:name:version"}.
+ * Symbolic names cannot contain a colon, everything after the third colon
+ * is the version, so version qualifiers may contain colons.
+ * The digest of an inventory is the sum of the 64 bit FNV-1a hashes of the
+ * UTF-8 encoded entries, it does not depend on the order of the bundles and
+ * is updated entry by entry.
+ */
+public final class BundleInventoryCodec
+{
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private BundleInventoryCodec()
+  {
+  }
+
+  public static String encode(BundleInfo bundleInfo)
+  {
+    return bundleInfo.id + ":" + bundleInfo.state.code() + ":" +
+           bundleInfo.symbolicName + ":" + bundleInfo.version;
+  }
+
+  /**
+   * @param entry Encoded entry
+   * @return Decoded bundle info
+   * @throws IllegalArgumentException if the entry is malformed
+   */
+  public static BundleInfo decode(String entry)
+  {
+    int stateStart = entry.indexOf(':') + 1;
+    int nameStart = stateStart == 0 ? 0 : entry.indexOf(':', stateStart) + 1;
+    int versionStart = nameStart == 0 ? 0 : entry.indexOf(':', nameStart) + 1;
+    if (versionStart == 0)
+      throw new IllegalArgumentException("Invalid bundle entry: " + entry);
+    BundleInfo bundleInfo = new BundleInfo();
+    bundleInfo.id = parseLong(entry, 0, stateStart - 1);
+    bundleInfo.state =
+      BundleState.get((int) parseLong(entry, stateStart, nameStart - 1));
+    if (bundleInfo.state == null)
+      throw new IllegalArgumentException("Invalid bundle state: " + entry);
+    bundleInfo.symbolicName = entry.substring(nameStart, versionStart - 1);
+    bundleInfo.version = entry.substring(versionStart);
+    return bundleInfo;
+  }
+
+  /**
+   * @return Contribution of an entry to the inventory digest
+   */
+  public static long hash(String entry)
+  {
+    long hash = FNV_OFFSET_BASIS;
+    for (byte b : entry.getBytes(StandardCharsets.UTF_8))
+    {
+      hash ^= b & 0xff;
+      hash *= FNV_PRIME;
+    }
+    return hash;
+  }
+
+  public static String formatDigest(long digest)
+  {
+    String hex = Long.toHexString(digest);
+    StringBuilder padded = new StringBuilder(16);
+    for (int i = hex.length(); i < 16; i++)
+      padded.append('0');
+    return padded.append(hex).toString();
+  }
+
+  private static long parseLong(String s, int start, int end)
+  {
+    if (start >= end)
+      throw new IllegalArgumentException("Invalid bundle entry: " + s);
+    long value = 0;
+    for (int i = start; i < end; i++)
+    {
+      int digit = s.charAt(i) - '0';
+      if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10)
+        throw new IllegalArgumentException("Invalid bundle entry: " + s);
+      value = value * 10 + digit;
+    }
+    return value;
+  }
+}
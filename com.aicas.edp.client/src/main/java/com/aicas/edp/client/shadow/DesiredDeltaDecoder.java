@@ -0,0 +1,116 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.shadow;
+
+import com.aicas.edp.client.common.shadow.Desired;
+import com.aicas.edp.client.common.task.Task;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Streaming decoder of the desired state in shadow deltas.
+ * Task ids are read first, the task of an id that is already known is
+ * skipped without binding it, only new tasks are deserialized.
+ */
+public class DesiredDeltaDecoder
+{
+  private static final String TASKS = "tasks";
+  private static final String BUNDLES_DIGEST = "bundlesDigest";
+  private final ObjectMapper mapper;
+  private final AtomicLong decoded = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+
+  public DesiredDeltaDecoder(ObjectMapper mapper)
+  {
+    this.mapper = mapper;
+  }
+
+  /**
+   * @param json Desired state of a delta
+   * @param known Task ids that need not be bound
+   * @return Desired state, known ids map to null
+   */
+  public Desired decode(String json, Predicate<String> known)
+    throws
+    IOException
+  {
+    Desired desired = new Desired();
+    try (JsonParser parser = mapper.getFactory().createParser(json))
+    {
+      if (parser.nextToken() != JsonToken.START_OBJECT)
+        throw new JsonParseException(parser, "Desired state is no object");
+      while (parser.nextToken() == JsonToken.FIELD_NAME)
+      {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if (TASKS.equals(field) && value == JsonToken.START_OBJECT)
+        {
+          desired.tasks = readTasks(parser, known);
+        }
+        else if (TASKS.equals(field) && value == JsonToken.VALUE_NULL)
+        {
+          desired.tasks = null;
+        }
+        else if (BUNDLES_DIGEST.equals(field) &&
+                 value == JsonToken.VALUE_STRING)
+        {
+          desired.bundlesDigest = parser.getText();
+        }
+        else
+        {
+          parser.skipChildren();
+        }
+      }
+    }
+    return desired;
+  }
+
+  public long getDecodedCount()
+  {
+    return decoded.get();
+  }
+
+  public long getSkippedCount()
+  {
+    return skipped.get();
+  }
+
+  private Map<String, Task> readTasks(JsonParser parser,
+                                      Predicate<String> known)
+    throws
+    IOException
+  {
+    Map<String, Task> tasks = new LinkedHashMap<>();
+    while (parser.nextToken() == JsonToken.FIELD_NAME)
+    {
+      String taskId = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (value == JsonToken.VALUE_NULL)
+      {
+        tasks.put(taskId, null);
+      }
+      else if (known.test(taskId))
+      {
+        parser.skipChildren();
+        tasks.put(taskId, null);
+        skipped.incrementAndGet();
+      }
+      else
+      {
+        tasks.put(taskId, mapper.readValue(parser, Task.class));
+        decoded.incrementAndGet();
+      }
+    }
+    return tasks;
+  }
+}
@@ -13,18 +13,28 @@ import lombok.extern.slf4j.Slf4j;
 public class GetShadowMessage extends AWSIotMessage
 {
   private final IotDevice iotDevice;
+  private final boolean reconcile;
 
   public GetShadowMessage(IotDevice iotDevice)
+  {
+    this(iotDevice, false);
+  }
+
+  /**
+   * @param reconcile Whether the get is a periodic reconciliation check
+   */
+  public GetShadowMessage(IotDevice iotDevice, boolean reconcile)
   {
     super(null, AWSIotQos.QOS0);
     this.iotDevice = iotDevice;
+    this.reconcile = reconcile;
   }
 
   @Override
   public void onSuccess()
   {
     log.debug("ShadowGet result: {}", this.getStringPayload());
-    iotDevice.onShadowGetResult(this.getStringPayload());
+    iotDevice.onShadowGetResult(this.getStringPayload(), reconcile);
   }
 
   @Override
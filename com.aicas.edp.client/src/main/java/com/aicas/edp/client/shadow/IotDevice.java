@@ -6,72 +6,202 @@ package com.aicas.edp.client.shadow;
 
 import com.aicas.edp.client.common.bundle.BundleInfo;
 import com.aicas.edp.client.common.shadow.Desired;
-import com.aicas.edp.client.common.shadow.ReportedShadow;
+import com.aicas.edp.client.common.shadow.Reported;
 import com.aicas.edp.client.common.shadow.Shadow;
+import com.aicas.edp.client.util.Configuration;
 import com.aicas.edp.client.util.Context;
+import com.amazonaws.services.iot.client.AWSIotConnectionStatus;
 import com.amazonaws.services.iot.client.AWSIotDevice;
+import com.amazonaws.services.iot.client.AWSIotDeviceErrorCode;
 import com.amazonaws.services.iot.client.AWSIotException;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 @Slf4j
 public class IotDevice extends AWSIotDevice
 {
   // JEDP-1169: shadow update default value of 1000ms if the environment variable is not set
-  private static final Integer updateIntervalMs = Optional.ofNullable(System.getenv("EDP_CLIENT_SHADOW_UPDATE"))
+  static final Integer updateIntervalMs = Optional.ofNullable(System.getenv("EDP_CLIENT_SHADOW_UPDATE"))
                                                           .map(Integer::parseInt)
                                                           .orElse(1000);
+  private static final String DELTA_ORDERING_KEY = "shadow/update/delta";
+  private static final long UPDATE_TIMEOUT_MS = 30 * 1000;
+  // The SDK reports the timeout of an update, the hold ends after it anyway
+  private static final long UPDATE_HOLD_SLACK_MS = 5 * 1000;
+  private static final long GET_TIMEOUT_MS = 60 * 1000;
+  private static final int MAX_CONFLICT_RETRIES = 5;
+  private static final String SHADOW_CACHE_FILE = "shadow-cache.json";
   private final ObjectMapper mapper;
+  private final DesiredDeltaDecoder deltaDecoder;
   private final Context context;
   private final AtomicReference<Shadow> cloudShadow = new AtomicReference<>();
-  private final AtomicBoolean updateScheduled = new AtomicBoolean(false);
-  private final AtomicBoolean updateRequired = new AtomicBoolean(false);
   private final ScheduledExecutorService executor =
     Executors.newSingleThreadScheduledExecutor();
+  private final ShadowUpdateScheduler updateScheduler;
+  // Reported state last accepted by the cloud, updates only carry the difference
+  private final AtomicReference<ObjectNode> acceptedReported =
+    new AtomicReference<>();
+  private final AtomicLong updateSequence = new AtomicLong();
+  private final ShadowUpdateTracker updateTracker = new ShadowUpdateTracker();
+  private long acceptedSequence;
+  // Completed by the update sent once the one in flight is acknowledged
+  private CompletableFuture<Boolean> nextOutcome;
+  private int conflicts;
+  private boolean unversioned;
+  private final ShadowCache shadowCache;
+  private final ShadowReconciler reconciler;
+  private final AtomicBoolean saveScheduled = new AtomicBoolean();
+  private volatile Function<LocalShadow, Reported> reportedView =
+    LocalShadow::toReported;
+  private volatile Consumer<ObjectNode> deltaFilter = delta -> { };
 
   public IotDevice(Context context)
   {
     super(context.getConfiguration().getThingName());
     this.context = context;
     mapper = createMapper();
+    deltaDecoder = new DesiredDeltaDecoder(mapper);
+    Configuration cfg = context.getConfiguration();
+    updateScheduler =
+      new ShadowUpdateScheduler(executor, this::updateCloudShadowInternal,
+                                updateIntervalMs,
+                                cfg.getShadowLowPriorityIntervalMs(),
+                                cfg.getShadowMaxBackoffMs());
+    File cacheFile = context.getBundleContext().getDataFile(SHADOW_CACHE_FILE);
+    shadowCache = cacheFile == null ? null : new ShadowCache(cacheFile, mapper);
+    reconciler = new ShadowReconciler(executor, this::reconcile,
+                                      cfg.getShadowReconcileIntervalMs());
     // We do not use scheduling reporting to cloud
     this.setReportInterval(0);
   }
 
+  /**
+   * @param reportedView Part of the local shadow reported in this (classic)
+   *                     shadow
+   */
+  void setReportedView(Function<LocalShadow, Reported> reportedView)
+  {
+    this.reportedView = reportedView;
+  }
+
+  /**
+   * @param deltaFilter Adjusts the reported section of every update
+   */
+  void setDeltaFilter(Consumer<ObjectNode> deltaFilter)
+  {
+    this.deltaFilter = deltaFilter;
+  }
+
+  /**
+   * Restores cloud shadow and accepted reported state of the last run.
+   * The cached version is not restored, activate() resets the version and
+   * the get in {@link #init()} syncs it.
+   * @return Local reported state of the last run, null on a cold start
+   */
+  Reported restoreCache()
+  {
+    ShadowCache.Entry entry = shadowCache == null ? null : shadowCache.load();
+    if (entry == null)
+      return null;
+    try
+    {
+      if (entry.cloud != null)
+        cloudShadow.set(mapper.treeToValue(entry.cloud, Shadow.class));
+      acceptedReported.set(entry.accepted);
+      return entry.local == null ? null :
+        mapper.treeToValue(entry.local, Reported.class);
+    }
+    catch (JsonProcessingException e)
+    {
+      log.warn("Ignoring incompatible shadow cache", e);
+      cloudShadow.set(null);
+      acceptedReported.set(null);
+      return null;
+    }
+  }
+
   public void init()
     throws
     AWSIotException
   {
-    Shadow shadow = new Shadow();
-    cloudShadow.set(shadow);
-    this.get(new GetShadowMessage(this), 60 * 1000);
+    // A restored shadow is used until the get below replaces it, the get
+    // also syncs the version that activate() has reset
+    cloudShadow.compareAndSet(null, new Shadow());
+    this.get(new GetShadowMessage(this), GET_TIMEOUT_MS);
+    reconciler.start();
+  }
+
+  void stopReconciliation()
+  {
+    reconciler.stop();
+  }
+
+  public ShadowReconciler getReconciler()
+  {
+    return reconciler;
   }
 
   public void shutdown()
   {
     executor.shutdownNow();
+    saveCache();
   }
 
-  public void onShadowGetResult(String payload)
+  /**
+   * @param reconcile Whether the shadow was fetched by a reconciliation
+   *                  check, it is then only adopted if it changed
+   */
+  public void onShadowGetResult(String payload, boolean reconcile)
   {
     try
     {
-      Shadow arrivedShadow = mapper.readValue(payload, Shadow.class);
-      cloudShadow.set(arrivedShadow);
-
+      JsonNode document = mapper.readTree(payload);
+      Shadow arrivedShadow = mapper.treeToValue(document, Shadow.class);
+      JsonNode reported = document.path("state").path("reported");
+      if (reconcile && !needsReconciliation(arrivedShadow.version, reported))
+        return;
+      Shadow previous = cloudShadow.getAndSet(arrivedShadow);
+      log.debug("Cloud shadow version {}, local version {}",
+                arrivedShadow.version, getLocalVersion().get());
+      // The cloud reported state is authoritative, only report what differs
+      synchronized (this)
+      {
+        acceptedReported.set(
+          reported.isObject() ? (ObjectNode) reported : null);
+        advanceVersion(arrivedShadow.version);
+      }
+      context.getShadowManager().onDesiredTasksChanged(
+        desiredTaskIds(previous), desiredTaskIds(arrivedShadow));
+      context.getShadowManager().onReportedAccepted(reported, true);
+      if (arrivedShadow.state != null && arrivedShadow.state.desired != null)
+      {
+        context.getShadowManager()
+          .onBackendBundlesDigest(arrivedShadow.state.desired.bundlesDigest);
+      }
+      scheduleSave();
+      notifyLocalShadowUpdated(ShadowUpdateScheduler.Priority.NORMAL);
     }
     catch (JsonProcessingException e)
     {
@@ -79,19 +209,88 @@ public class IotDevice extends AWSIotDevice
     }
   }
 
+  /**
+   * Compares a shadow fetched for reconciliation with the local view of the
+   * cloud state. An unchanged version needs no further check, otherwise the
+   * reported states are compared by digest. Either way the fetched shadow
+   * is adopted, on a mismatch the next update re-reports what differs.
+   * @return true if the fetched shadow has to be adopted
+   */
+  private boolean needsReconciliation(Long version, JsonNode reported)
+  {
+    if (updateTracker.getPendingCount() > 0)
+    {
+      log.trace("Shadow updates pending, skipping reconciliation");
+      return false;
+    }
+    synchronized (this)
+    {
+      if (version != null && version == getLocalVersion().get())
+      {
+        reconciler.onChecked(true);
+        return false;
+      }
+      boolean matched = ShadowReconciler.digest(acceptedReported.get())
+        .equals(ShadowReconciler.digest(reported));
+      reconciler.onChecked(matched);
+      if (!matched)
+      {
+        log.info("Cloud reported state diverged at version {}, re-reporting",
+                 version);
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Fetches the cloud shadow for a reconciliation check.
+   */
+  private void reconcile()
+  {
+    if (context.getIotManager().getConnectionStatus() !=
+        AWSIotConnectionStatus.CONNECTED)
+      return;
+    try
+    {
+      this.get(new GetShadowMessage(this, true), GET_TIMEOUT_MS);
+    }
+    catch (AWSIotException e)
+    {
+      log.warn("Failed to request shadow for reconciliation", e);
+    }
+  }
+
+  /**
+   * Called on the MQTT client callback thread, parsing and task scheduling
+   * is handed to the inbound dispatcher.
+   * @param deltaState State part of the delta document
+   */
   @Override
   public void onShadowUpdate(String deltaState)
+  {
+    context.getIotManager().getInboundDispatcher()
+      .dispatch(DELTA_ORDERING_KEY, () -> handleShadowDelta(deltaState));
+  }
+
+  private void handleShadowDelta(String deltaState)
   {
     log.debug("OnShadowUpdate body - {}", deltaState);
 
     try
     {
-      Desired desired = mapper.readValue(deltaState, Desired.class);
+      Desired desired = deltaDecoder.decode(
+        deltaState, context.getShadowManager()::isKnownTask);
+      Set<String> previous = desiredTaskIds(cloudShadow.get());
       cloudShadow.updateAndGet(shadow -> {
         shadow.state.desired = desired;
         return shadow;
       });
-      if (desired != null && desired.tasks != null && !desired.tasks.isEmpty())
+      context.getShadowManager()
+        .onDesiredTasksChanged(previous, desiredTaskIds(cloudShadow.get()));
+      if (desired == null)
+        return;
+      context.getShadowManager().onBackendBundlesDigest(desired.bundlesDigest);
+      if (desired.tasks != null && !desired.tasks.isEmpty())
       {
         log.trace("There are tasks in desired, delegating to ShadowManager");
         context.getShadowManager().handleDeltaUpdate(desired);
@@ -118,7 +317,7 @@ public class IotDevice extends AWSIotDevice
     try
     {
       return mapper.writeValueAsString(
-        context.getShadowManager().getLocalShadow().state.reported);
+        context.getShadowManager().getLocalShadow().toReported());
     }
     catch (JsonProcessingException e)
     {
@@ -134,68 +333,115 @@ public class IotDevice extends AWSIotDevice
 
   /**
    * Shadow manager will call this method whenever the local Shadow changes.
-   * This method will make the actual update maximum once in X time.
-   * this update throttling is achieved in following way:
-   *      If there is no update scheduled, schedule it immediately.
-   *      After the update, update method will schedule itself again after X time.
-   *      If nothing is changed in X time,schedule lock will be released,
-   *      and the next update will be scheduled whenever it comes.
-   *
-   *      if there are changes, this method will continue to push local shadow
-   *      to the cloud once in X time.
+   * The update is sent by the {@link ShadowUpdateScheduler}, changes arriving
+   * until then are coalesced into the same update.
+   * @param priority How urgently the change has to reach the cloud
    */
-  void notifyLocalShadowUpdated()
+  void notifyLocalShadowUpdated(ShadowUpdateScheduler.Priority priority)
   {
-    log.debug(
-      "Received local shadow updated notification. updateRequired:{}, updateScheduled:{}",
-      updateRequired.get(), updateScheduled.get());
-    updateRequired.set(true);
-    if (updateScheduled.compareAndSet(false, true))
-    {
-      log.debug("Scheduling update immediately");
-      executor.schedule(this::updateCloudShadow, 0, TimeUnit.SECONDS);
-    }
-    else
-    {// else here, means update is already scheduled.
-      log.debug("Update in progress, will run later");
-    }
+    log.debug("Received local shadow updated notification, priority: {}",
+              priority);
+    updateScheduler.request(priority);
   }
 
-  void updateImmediately()
+  /**
+   * @return Completed with true once the update is accepted, right away if
+   * there is nothing to update
+   */
+  CompletableFuture<Boolean> updateImmediately()
   {
-    updateCloudShadowInternal();
+    return updateCloudShadowInternal();
   }
 
-  private void updateCloudShadow()
+  public ShadowUpdateTracker getUpdateTracker()
   {
-    log.trace("running updateCloudShadow... updateRequired:{}",
-              updateRequired.get());
-    boolean wasTrue = updateRequired.compareAndSet(true, false);
+    return updateTracker;
+  }
 
-    if (wasTrue)
-    { // It is the First run, or local shadow updated between 2 runs (in X time)
-      log.debug("Updating cloud Shadow");
-      updateCloudShadowInternal();
-      // Rescheduling 1 more time, to maintain throttling
-      executor.schedule(this::updateCloudShadow, updateIntervalMs,
-                        TimeUnit.MILLISECONDS);
-    }
-    else
-    {// was false, it is the second run, no update in previous X time. Do not reschedule
-      log.trace("nothing to update, going off");
-      updateScheduled.set(false);
+  /**
+   * @return Current backoff after failed updates, 0 after an accepted one
+   */
+  long getUpdateBackoffMs()
+  {
+    return updateScheduler.getBackoffMs();
+  }
+
+  /**
+   * @return Executor of the device, for delayed shadow work
+   */
+  ScheduledExecutorService getExecutor()
+  {
+    return executor;
+  }
+
+  /**
+   * Sends the reported state that differs from the accepted one. Only one
+   * update is in flight at a time: a second one would carry the same
+   * version and be rejected with a conflict. Meanwhile the update is left
+   * to the flush the scheduler runs once the update in flight is
+   * acknowledged.
+   * @return Outcome of the update that carries the current state
+   */
+  private synchronized CompletableFuture<Boolean> updateCloudShadowInternal()
+  {
+    if (updateScheduler.isHeld())
+    {
+      if (nextOutcome == null)
+        nextOutcome = new CompletableFuture<>();
+      updateScheduler.request(ShadowUpdateScheduler.Priority.HIGH);
+      return nextOutcome;
     }
+    CompletableFuture<Boolean> waiting = nextOutcome;
+    nextOutcome = null;
+    CompletableFuture<Boolean> outcome = sendUpdate();
+    if (waiting != null)
+      outcome.thenAccept(waiting::complete);
+    return outcome;
   }
 
-  private void updateCloudShadowInternal()
+  private CompletableFuture<Boolean> sendUpdate()
   {
     log.trace("updating shadow internal");
     try
     {
-      ReportedShadow reported =
-        new ReportedShadow(context.getShadowManager().getLocalShadow());
-      log.debug("Updating shadow {}", reported);
-      this.update(mapper.writeValueAsString(reported));
+      ObjectNode reported = mapper.valueToTree(
+        reportedView.apply(context.getShadowManager().getLocalShadow()));
+      ObjectNode delta = ShadowDiff.diff(acceptedReported.get(), reported);
+      deltaFilter.accept(delta);
+      if (delta.size() == 0)
+      {
+        log.trace("Reported state unchanged, skipping update");
+        return CompletableFuture.completedFuture(true);
+      }
+      ObjectNode document = mapper.createObjectNode();
+      document.putObject("state").set("reported", delta);
+      long version = getLocalVersion().get();
+      if (version >= 0 && !unversioned)
+      {
+        // Rejected with a conflict if the shadow changed meanwhile
+        document.put("version", version);
+      }
+      String payload = mapper.writeValueAsString(document);
+      long sequence = updateSequence.incrementAndGet();
+      // The SDK puts its own client token into the document and correlates
+      // the response, the update is tracked under a token of its own
+      String clientToken = getThingName() + "-" + sequence;
+      log.debug("Updating shadow #{} {}", sequence, payload);
+      CompletableFuture<Boolean> outcome = updateTracker.begin(clientToken);
+      updateScheduler.hold(UPDATE_TIMEOUT_MS + UPDATE_HOLD_SLACK_MS);
+      try
+      {
+        this.update(new UpdateShadowMessage(this, payload, reported, delta,
+                                            sequence, clientToken),
+                    UPDATE_TIMEOUT_MS);
+      }
+      catch (AWSIotException e)
+      {
+        updateTracker.onSendFailed(clientToken);
+        updateScheduler.onUpdateFailed();
+        throw e;
+      }
+      return outcome;
     }
     catch (AWSIotException e)
     {
@@ -209,9 +455,148 @@ public class IotDevice extends AWSIotDevice
     {
       log.error("What a Terrible Failure!", t);
     }
+    return CompletableFuture.completedFuture(false);
+  }
+
+  /**
+   * Reports a field in full with the next update, whatever the cloud has
+   * accepted before. Updates still in flight do not restore the baseline.
+   */
+  void resendReported(String field)
+  {
+    synchronized (this)
+    {
+      acceptedSequence = Math.max(acceptedSequence, updateSequence.get());
+      ObjectNode baseline = acceptedReported.get();
+      if (baseline != null && baseline.has(field))
+      {
+        ObjectNode resend = baseline.deepCopy();
+        resend.remove(field);
+        acceptedReported.set(resend);
+      }
+    }
+    notifyLocalShadowUpdated(ShadowUpdateScheduler.Priority.NORMAL);
+  }
+
+  /**
+   * Makes the reported state of an accepted update the new baseline, unless
+   * a later update was accepted already.
+   */
+  void onUpdateAccepted(ObjectNode reported, ObjectNode delta, long sequence,
+                        Long version)
+  {
+    context.getShadowManager().onReportedAccepted(delta, false);
+    onUpdateAccepted(reported, sequence, version);
+  }
+
+  private synchronized void onUpdateAccepted(ObjectNode reported,
+                                             long sequence, Long version)
+  {
+    updateScheduler.onUpdateAccepted();
+    conflicts = 0;
+    unversioned = false;
+    advanceVersion(version);
+    if (sequence > acceptedSequence)
+    {
+      acceptedSequence = sequence;
+      acceptedReported.set(reported);
+      scheduleSave();
+    }
+  }
+
+  /**
+   * The cloud state is unknown after a failed update. On a version conflict
+   * the shadow is fetched again, which brings version and baseline up to
+   * date and triggers the retry. Otherwise the next update reports the full
+   * state again.
+   */
+  void onUpdateFailed(long sequence, AWSIotDeviceErrorCode errorCode)
+  {
+    updateScheduler.onUpdateFailed();
+    synchronized (this)
+    {
+      acceptedSequence = Math.max(acceptedSequence, sequence);
+      if (errorCode == AWSIotDeviceErrorCode.CONFLICT)
+      {
+        conflicts++;
+        if (conflicts <= MAX_CONFLICT_RETRIES)
+        {
+          log.debug("Shadow version conflict #{}, fetching shadow", conflicts);
+          if (refetch())
+            return;
+        }
+        else
+        {
+          log.warn("Shadow version conflict persists, updating unversioned");
+          unversioned = true;
+        }
+      }
+      acceptedReported.set(null);
+    }
+    notifyLocalShadowUpdated(ShadowUpdateScheduler.Priority.NORMAL);
+  }
+
+  private boolean refetch()
+  {
+    try
+    {
+      this.get(new GetShadowMessage(this), GET_TIMEOUT_MS);
+      return true;
+    }
+    catch (AWSIotException e)
+    {
+      log.error("Failed to request shadow", e);
+      return false;
+    }
+  }
+
+  /**
+   * Versions only move forward, responses may arrive out of order.
+   */
+  private void advanceVersion(Long version)
+  {
+    if (version != null)
+      getLocalVersion().accumulateAndGet(version, Math::max);
+  }
+
+  private static Set<String> desiredTaskIds(Shadow shadow)
+  {
+    if (shadow == null || shadow.state == null ||
+        shadow.state.desired == null || shadow.state.desired.tasks == null)
+      return Collections.emptySet();
+    return new HashSet<>(shadow.state.desired.tasks.keySet());
+  }
+
+  /**
+   * Writes the cache on the update thread, at most one write is pending.
+   */
+  private void scheduleSave()
+  {
+    if (shadowCache != null && saveScheduled.compareAndSet(false, true))
+    {
+      executor.execute(this::saveCache);
+    }
+  }
+
+  private void saveCache()
+  {
+    saveScheduled.set(false);
+    if (shadowCache == null)
+      return;
+    ShadowCache.Entry entry = new ShadowCache.Entry();
+    synchronized (this)
+    {
+      long version = getLocalVersion().get();
+      entry.version = version >= 0 ? version : null;
+      entry.accepted = acceptedReported.get();
+    }
+    entry.local = mapper.valueToTree(
+      context.getShadowManager().getLocalShadow().toReported());
+    entry.cloud = mapper.valueToTree(cloudShadow.get());
+    shadowCache.save(entry);
   }
 
-  private ObjectMapper createMapper()
+  static ObjectMapper createMapper()
   {
     ObjectMapper objectMapper = new ObjectMapper();
     objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES,
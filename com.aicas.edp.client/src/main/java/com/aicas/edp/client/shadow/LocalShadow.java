@@ -0,0 +1,198 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.shadow;
+
+import com.aicas.edp.client.common.bundle.BundleInfo;
+import com.aicas.edp.client.common.shadow.Reported;
+import com.aicas.edp.client.common.task.TaskResult;
+import com.aicas.edp.client.util.PersistentMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the locally reported device state.
+ * Every change returns a new snapshot sharing the unchanged parts, writers
+ * swap snapshots atomically and readers (e.g. serialization) always see a
+ * consistent state without locking.
+ */
+public final class LocalShadow
+{
+  public static final LocalShadow EMPTY =
+    new LocalShadow(null, null, null, null, PersistentMap.empty());
+  private final Boolean online;
+  private final DeviceInfo deviceInfo;
+  private final List<BundleInfo> bundles;
+  private final BundleInventory bundleInventory;
+  private final PersistentMap<String, TaskResult> taskResults;
+
+  private LocalShadow(Boolean online, DeviceInfo deviceInfo,
+                      List<BundleInfo> bundles,
+                      BundleInventory bundleInventory,
+                      PersistentMap<String, TaskResult> taskResults)
+  {
+    this.online = online;
+    this.deviceInfo = deviceInfo;
+    this.bundles = bundles;
+    this.bundleInventory = bundleInventory;
+    this.taskResults = taskResults;
+  }
+
+  public Boolean isOnline()
+  {
+    return online;
+  }
+
+  public DeviceInfo getDeviceInfo()
+  {
+    return deviceInfo;
+  }
+
+  public List<BundleInfo> getBundles()
+  {
+    return bundles;
+  }
+
+  /**
+   * @return Inventory of the bundles, null until bundles are known
+   */
+  public BundleInventory getBundleInventory()
+  {
+    return bundleInventory;
+  }
+
+  /**
+   * @return Task results by task id, a null value marks a result whose
+   * removal still has to be reported
+   */
+  public PersistentMap<String, TaskResult> getTaskResults()
+  {
+    return taskResults;
+  }
+
+  public LocalShadow withOnline(boolean online)
+  {
+    return new LocalShadow(online, deviceInfo, bundles, bundleInventory,
+                           taskResults);
+  }
+
+  public LocalShadow withDeviceInfo(DeviceInfo deviceInfo)
+  {
+    return new LocalShadow(online, deviceInfo, bundles, bundleInventory,
+                           taskResults);
+  }
+
+  /**
+   * @param bundles Bundle list, copied
+   */
+  public LocalShadow withBundles(List<BundleInfo> bundles)
+  {
+    BundleInventory inventory = bundleInventory == null ?
+      BundleInventory.EMPTY : bundleInventory;
+    return new LocalShadow(online, deviceInfo, Collections.unmodifiableList(
+      new ArrayList<>(bundles)), inventory.update(bundles), taskResults);
+  }
+
+  public LocalShadow withTaskResults(
+    PersistentMap<String, TaskResult> taskResults)
+  {
+    if (taskResults == this.taskResults)
+      return this;
+    return new LocalShadow(online, deviceInfo, bundles, bundleInventory,
+                           taskResults);
+  }
+
+  /**
+   * @return Reported shadow section for serialization
+   */
+  public Reported toReported()
+  {
+    Reported reported = new Reported();
+    reported.online = online;
+    if (deviceInfo != null)
+    {
+      reported.arch = deviceInfo.arch;
+      reported.osName = deviceInfo.osName;
+      reported.osVersion = deviceInfo.osVersion;
+      reported.javaRuntimeName = deviceInfo.javaRuntimeName;
+      reported.javaRuntimeVersion = deviceInfo.javaRuntimeVersion;
+      reported.vmAccelerationInfo = deviceInfo.vmAccelerationInfo;
+    }
+    setInventory(reported);
+    reported.taskResults = taskResults.isEmpty() ? null : taskResults.toMap();
+    return reported;
+  }
+
+  /**
+   * @return Reported section without bundles and task results, which are
+   * reported in their own named shadows
+   */
+  public Reported toDeviceReported()
+  {
+    Reported reported = toReported();
+    reported.bundlesDigest = null;
+    reported.bundleInventory = null;
+    reported.taskResults = null;
+    return reported;
+  }
+
+  /**
+   * @return Reported section of the inventory shadow
+   */
+  public Reported toInventoryReported()
+  {
+    Reported reported = new Reported();
+    setInventory(reported);
+    return reported;
+  }
+
+  /**
+   * @return Reported section of the tasks shadow
+   */
+  public Reported toTasksReported()
+  {
+    Reported reported = new Reported();
+    reported.taskResults = taskResults.isEmpty() ? null : taskResults.toMap();
+    return reported;
+  }
+
+  /**
+   * Bundles are reported as inventory keyed by bundle id plus digest, not
+   * as list, so that only changed entries are sent.
+   */
+  private void setInventory(Reported reported)
+  {
+    if (bundleInventory == null)
+      return;
+    reported.bundlesDigest = bundleInventory.getDigest();
+    reported.bundleInventory = bundleInventory.toMap();
+  }
+
+  /**
+   * Static properties of the device and its runtime.
+   */
+  public static final class DeviceInfo
+  {
+    public final String arch;
+    public final String osName;
+    public final String osVersion;
+    public final String javaRuntimeName;
+    public final String javaRuntimeVersion;
+    public final String vmAccelerationInfo;
+
+    public DeviceInfo(String arch, String osName, String osVersion,
+                      String javaRuntimeName, String javaRuntimeVersion,
+                      String vmAccelerationInfo)
+    {
+      this.arch = arch;
+      this.osName = osName;
+      this.osVersion = osVersion;
+      this.javaRuntimeName = javaRuntimeName;
+      this.javaRuntimeVersion = javaRuntimeVersion;
+      this.vmAccelerationInfo = vmAccelerationInfo;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.shadow;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Last known shadow state in the bundle data area, so that a restarted
+ * client does not begin with an empty shadow.
+ * The file is replaced atomically, a missing or unreadable file just means
+ * a cold start.
+ */
+@Slf4j
+public class ShadowCache
+{
+  private final File file;
+  private final ObjectMapper mapper;
+
+  public ShadowCache(File file, ObjectMapper mapper)
+  {
+    this.file = file;
+    this.mapper = mapper;
+  }
+
+  /**
+   * @return Cached state, null if there is none
+   */
+  public synchronized Entry load()
+  {
+    if (!file.isFile())
+      return null;
+    try
+    {
+      Entry entry = mapper.readValue(file, Entry.class);
+      log.debug("Loaded shadow cache, version {}", entry.version);
+      return entry;
+    }
+    catch (IOException e)
+    {
+      log.warn("Ignoring unreadable shadow cache {}", file, e);
+      return null;
+    }
+  }
+
+  public synchronized void save(Entry entry)
+  {
+    File tmp = new File(file.getPath() + ".tmp");
+    try
+    {
+      mapper.writeValue(tmp, entry);
+      Files.move(tmp.toPath(), file.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+      log.trace("Saved shadow cache, version {}", entry.version);
+    }
+    catch (IOException e)
+    {
+      log.warn("Failed to save shadow cache {}", file, e);
+    }
+  }
+
+  public static class Entry
+  {
+    /**
+     * Cloud shadow version the state belongs to
+     */
+    public Long version;
+    /**
+     * Reported state last accepted by the cloud
+     */
+    public ObjectNode accepted;
+    /**
+     * Local reported state
+     */
+    public ObjectNode local;
+    /**
+     * Last known cloud shadow document
+     */
+    public JsonNode cloud;
+  }
+}
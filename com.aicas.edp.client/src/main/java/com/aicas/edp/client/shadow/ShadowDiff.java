@@ -0,0 +1,81 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.shadow;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Field level difference of two reported states, in the form of a shadow
+ * update document.
+ * Objects are compared recursively, anything else (including arrays, which
+ * the shadow service replaces as a whole) is compared as one value.
+ * Fields present in the baseline but missing or null in the current state
+ * become {@code null}, which deletes them from the cloud shadow.
+ */
+public final class ShadowDiff
+{
+  private ShadowDiff()
+  {
+  }
+
+  /**
+   * @param baseline State the cloud has accepted, null if unknown
+   * @param current State to report
+   * @return Fields to send, empty if nothing changed
+   */
+  public static ObjectNode diff(JsonNode baseline, ObjectNode current)
+  {
+    if (baseline == null || !baseline.isObject())
+      return current.deepCopy();
+    return diffObjects((ObjectNode) baseline, current);
+  }
+
+  private static ObjectNode diffObjects(ObjectNode baseline,
+                                        ObjectNode current)
+  {
+    ObjectNode delta = JsonNodeFactory.instance.objectNode();
+    Iterator<Map.Entry<String, JsonNode>> fields = current.fields();
+    while (fields.hasNext())
+    {
+      Map.Entry<String, JsonNode> field = fields.next();
+      JsonNode value = field.getValue();
+      JsonNode previous = baseline.get(field.getKey());
+      if (isAbsent(value))
+      {
+        if (!isAbsent(previous))
+          delta.putNull(field.getKey());
+      }
+      else if (value.isObject() && previous != null && previous.isObject())
+      {
+        ObjectNode nested =
+          diffObjects((ObjectNode) previous, (ObjectNode) value);
+        if (nested.size() > 0)
+          delta.set(field.getKey(), nested);
+      }
+      else if (!value.equals(previous))
+      {
+        delta.set(field.getKey(), value);
+      }
+    }
+    Iterator<Map.Entry<String, JsonNode>> removed = baseline.fields();
+    while (removed.hasNext())
+    {
+      Map.Entry<String, JsonNode> field = removed.next();
+      if (!current.has(field.getKey()) && !isAbsent(field.getValue()))
+        delta.putNull(field.getKey());
+    }
+    return delta;
+  }
+
+  private static boolean isAbsent(JsonNode node)
+  {
+    return node == null || node.isNull();
+  }
+}
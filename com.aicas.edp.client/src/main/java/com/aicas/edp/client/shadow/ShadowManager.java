@@ -5,47 +5,96 @@
 package com.aicas.edp.client.shadow;
 
 import com.aicas.edp.client.common.bundle.BundleInfo;
+import com.aicas.edp.client.common.bundle.BundleState;
 import com.aicas.edp.client.common.shadow.Desired;
 import com.aicas.edp.client.common.shadow.Reported;
 import com.aicas.edp.client.common.shadow.Shadow;
 import com.aicas.edp.client.common.task.BasicTaskResult;
+import com.aicas.edp.client.common.task.Task;
 import com.aicas.edp.client.common.task.TaskResult;
 import com.aicas.edp.client.common.task.TaskStatus;
+import com.aicas.edp.client.task.TaskLedger;
+import com.aicas.edp.client.task.TaskManager;
 import com.aicas.edp.client.util.Context;
 import com.aicas.edp.client.util.JamaicaVmInfo;
 import com.aicas.edp.client.util.Manager;
+import com.aicas.edp.client.util.PersistentMap;
+import com.amazonaws.services.iot.client.AWSIotConnectionStatus;
+import com.amazonaws.services.iot.client.AWSIotDeviceErrorCode;
 import com.amazonaws.services.iot.client.AWSIotException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 
 @Slf4j
 public class ShadowManager implements Manager
 {
+  private static final String TASK_LEDGER_FILE = "task-ledger.log";
+  private static final String INVENTORY_SHADOW = "inventory";
+  private static final String TASKS_SHADOW = "tasks";
+  private static final String BUNDLE_INVENTORY = "bundleInventory";
+  private static final int MAX_QUEUE_FULL_RETRIES = 5;
+  private static final long RETRY_DELAY_MS = 1000;
+  private static final long MAX_RETRY_DELAY_MS = 30000;
+  private static final long MIN_OFFLINE_RETRY_DELAY_MS = 100;
   private final Context context;
   private IotDevice iotDevice;
-  private final AtomicReference<Shadow> shadowLocal = new AtomicReference<>();
+  private TaskLedger taskLedger;
+  private TaskResultStore taskResultStore;
+  private final List<ShadowPartition> partitions = new ArrayList<>();
+  private ShadowPartition inventoryShadow;
+  private ShadowPartition tasksShadow;
+  private final AtomicReference<LocalShadow> shadowLocal =
+    new AtomicReference<>(LocalShadow.EMPTY);
   private final Map<String, CompletableFuture<TaskResult>> scheduledTasks =
     new ConcurrentHashMap<>();
+  // Backend digest the full inventory was last resent for
+  private final AtomicReference<String> resentForDigest =
+    new AtomicReference<>();
 
   public ShadowManager(Context context)
   {
     this.context = context;
     log.trace("Shadow Manager created");
-    shadowLocal.set(new Shadow());
   }
 
   @Override
   public void initialize()
   {
     iotDevice = new IotDevice(context);
+    if (context.getConfiguration().isShadowPartitioningEnabled())
+      createPartitions();
+    taskLedger = createTaskLedger();
+    taskResultStore = createTaskResultStore();
+    // Evicted results stay in the cloud
+    if (tasksShadow != null)
+      tasksShadow.setDeltaFilter(taskResultStore::retainEvicted);
+    else
+      iotDevice.setDeltaFilter(taskResultStore::retainEvicted);
+    restoreTaskResults(iotDevice.restoreCache());
     populateDeviceInfo();
     setOnline();
+    long metricsIntervalMs =
+      context.getConfiguration().getMetricsLogIntervalMs();
+    if (metricsIntervalMs > 0)
+      iotDevice.getExecutor().scheduleAtFixedRate(
+        this::logUpdateMetrics, metricsIntervalMs, metricsIntervalMs,
+        TimeUnit.MILLISECONDS);
   }
 
   @Override
@@ -55,8 +104,13 @@ public class ShadowManager implements Manager
   {
     context.getIotManager().attach(iotDevice);
     iotDevice.activate();
-    //iotDevice.setEnableVersioning(true);
+    // Enabled after activation, the get in init() already syncs the version
+    iotDevice.setEnableVersioning(true);
     iotDevice.init();
+    for (ShadowPartition partition : partitions)
+    {
+      partition.connect();
+    }
     log.trace("Shadow Manager activated");
   }
 
@@ -65,7 +119,13 @@ public class ShadowManager implements Manager
     throws
     AWSIotException
   {
+    iotDevice.stopReconciliation();
     setOffline();
+    logUpdateMetrics();
+    for (ShadowPartition partition : partitions)
+    {
+      partition.disconnect();
+    }
     iotDevice.deactivate();
     context.getIotManager().detach(iotDevice);
   }
@@ -74,6 +134,9 @@ public class ShadowManager implements Manager
   public void shutdown()
   {
     iotDevice.shutdown();
+    partitions.forEach(ShadowPartition::shutdown);
+    if (taskLedger != null)
+      taskLedger.close();
   }
 
   /**
@@ -83,33 +146,77 @@ public class ShadowManager implements Manager
   public void handleDeltaUpdate(Desired desired)
   {
     log.trace("Handling Delta update");
-    for (String taskId : desired.tasks.keySet())
+    for (Map.Entry<String, Task> desiredTask : desired.tasks.entrySet())
     {
-      Map<String, TaskResult> taskResults =
-        shadowLocal.get().state.reported.taskResults;
-      if (taskResults != null)
+      String taskId = desiredTask.getKey();
+      if (desiredTask.getValue() == null)
       {
-        if (taskResults.containsKey(taskId))
-        {
-          log.trace("task # {} already processed", taskId);
-          continue;
-        }
-        else if (scheduledTasks.containsKey(taskId))
-        {
-          log.trace("task # {} already scheduled", taskId);
-          continue;
-        }
+        // Known when the delta was decoded, the task was not bound
+        continue;
       }
+      else if (taskResultStore.contains(taskId))
+      {
+        log.trace("task # {} already processed", taskId);
+        continue;
+      }
+      else if (scheduledTasks.containsKey(taskId))
+      {
+        log.trace("task # {} already scheduled", taskId);
+        continue;
+      }
+      else if (taskLedger != null && taskLedger.contains(taskId))
+      {
+        log.debug("task # {} already processed in an earlier run", taskId);
+        continue;
+      }
+      // Registered before the task runs, its result may be there at once
+      CompletableFuture<TaskResult> scheduled = new CompletableFuture<>();
+      if (scheduledTasks.putIfAbsent(taskId, scheduled) != null)
+        continue;
       log.trace("Executing task with id:{}", taskId);
-      CompletableFuture<TaskResult> future = this.context.getTaskManager()
-        .executeAsync(desired.tasks.get(taskId))
-        .whenComplete(
-          (taskResult, throwable) -> handleAsyncTaskResult(taskId, taskResult,
-                                                           throwable));
-      this.scheduledTasks.put(taskId, future);
+      execute(taskId, desiredTask.getValue(), scheduled, 0);
     }
   }
 
+  /**
+   * Executes a desired task. A task rejected because its queue is full is
+   * retried with backoff while it is still desired.
+   */
+  private void execute(String taskId, Task task,
+                       CompletableFuture<TaskResult> scheduled, int attempt)
+  {
+    context.getTaskManager().executeAsync(task).whenComplete(
+      (taskResult, throwable) -> {
+        if (TaskManager.isQueueFull(taskResult) &&
+            attempt < MAX_QUEUE_FULL_RETRIES && isDesired(taskId))
+        {
+          long delayMs = Math.min(MAX_RETRY_DELAY_MS,
+                                  RETRY_DELAY_MS << attempt);
+          log.debug("Task {} rejected, queue full, retrying in {} ms", taskId,
+                    delayMs);
+          iotDevice.getExecutor().schedule(
+            () -> retry(taskId, task, scheduled, attempt + 1), delayMs,
+            TimeUnit.MILLISECONDS);
+          return;
+        }
+        handleAsyncTaskResult(taskId, taskResult, throwable);
+        scheduled.complete(taskResult);
+      });
+  }
+
+  private void retry(String taskId, Task task,
+                     CompletableFuture<TaskResult> scheduled, int attempt)
+  {
+    if (!isDesired(taskId))
+    {
+      log.debug("Task {} no longer desired, not retried", taskId);
+      scheduledTasks.remove(taskId, scheduled);
+      scheduled.cancel(false);
+      return;
+    }
+    execute(taskId, task, scheduled, attempt);
+  }
+
   /**
    * Helper method, that is called after Execute Task future is completed.
    * Method handles result of the Task execution, either TaskResult or Throwable.
@@ -131,94 +238,345 @@ public class ShadowManager implements Manager
       taskResult.setMessage("Unexpected exception: " + throwable.getMessage());
     }
     TaskResult finalTaskResult = taskResult;
-    shadowLocal.updateAndGet(shadow -> {
-      Map<String, TaskResult> taskResults = shadow.state.reported.taskResults;
-      if (taskResults == null)
-      {
-        taskResults = new HashMap<>();
-        shadow.state.reported.taskResults = taskResults;
-      }
-      taskResults.put(taskId, finalTaskResult);
-      return shadow;
-    });
+    taskResultStore.put(taskId, finalTaskResult, isDesired(taskId));
+    publishTaskResults();
+    // Nothing was executed for a rejected task, it may be sent again
+    if (taskLedger != null && finalTaskResult.getStatus() != TaskStatus.REJECTED)
+      taskLedger.record(taskId);
     scheduledTasks.remove(taskId);
-    houseHolding();
-    iotDevice.notifyLocalShadowUpdated();
-    System.out.println("");
+    // Final results are what the backend waits for
+    notifyTaskResultsUpdated(
+      finalTaskResult.getStatus() == TaskStatus.IN_PROGRESS ?
+        ShadowUpdateScheduler.Priority.NORMAL :
+        ShadowUpdateScheduler.Priority.HIGH);
+  }
+
+  /**
+   * @return true if the task has been executed or is scheduled already
+   */
+  boolean isKnownTask(String taskId)
+  {
+    return scheduledTasks.containsKey(taskId) ||
+           taskResultStore.contains(taskId) ||
+           (taskLedger != null && taskLedger.contains(taskId));
   }
 
-  private void houseHolding()
+  private boolean isDesired(String taskId)
   {
-    // First, lets remove TaskResults, whose corresponding Tasks are already removed by the Backend.
     Shadow cloudShadow = iotDevice.getCloudShadow();
-    shadowLocal.getAndUpdate(shadow -> {
-      shadow.state.reported.taskResults.forEach((taskId, taskResult) -> {
-        // If there are no Task with same id in Desired - remove Task Result
-        if (!cloudShadow.state.desired.tasks.containsKey(taskId))
-        {
-          // if TaskResult value is already null, then cloud should be already updated,
-          // and nulls are no longer needed.
-          if (shadow.state.reported.taskResults.get(taskId) == null)
-          {
-            shadow.state.reported.taskResults.remove(taskId);
-          }
-          else
-          {
-            shadow.state.reported.taskResults.replace(taskId, null);
-          }
-        }
-      });
-      return shadow;
-    });
+    // Without desired state the result is kept until it is known
+    if (cloudShadow == null || cloudShadow.state.desired == null ||
+        cloudShadow.state.desired.tasks == null)
+      return true;
+    return cloudShadow.state.desired.tasks.containsKey(taskId);
   }
 
-  public Shadow getLocalShadow()
+  /**
+   * Called when the desired tasks changed, results of tasks the backend has
+   * removed are released.
+   * @param previous Task ids desired before
+   * @param current Task ids desired now
+   */
+  void onDesiredTasksChanged(Set<String> previous, Set<String> current)
+  {
+    List<String> removed = new ArrayList<>();
+    for (String taskId : previous)
+    {
+      if (!current.contains(taskId))
+        removed.add(taskId);
+    }
+    if (removed.isEmpty())
+      return;
+    for (String taskId : removed)
+    {
+      // The backend no longer wants a task that has not finished yet
+      if (scheduledTasks.containsKey(taskId) &&
+          context.getTaskManager().cancel(taskId))
+        log.info("Task {} removed from desired, cancelled", taskId);
+    }
+    taskResultStore.onTasksRemoved(removed);
+    if (publishTaskResults())
+      notifyTaskResultsUpdated(ShadowUpdateScheduler.Priority.NORMAL);
+  }
+
+  /**
+   * Called when the cloud accepted a reported update.
+   * @param reported Accepted reported fields
+   * @param complete Whether this is the complete reported state of the cloud
+   */
+  void onReportedAccepted(JsonNode reported, boolean complete)
+  {
+    JsonNode taskResults = reported == null ? null : reported.get("taskResults");
+    if (complete)
+      taskResultStore.onCloudState(taskResults);
+    else if (taskResults != null)
+      taskResultStore.onAccepted(taskResults);
+    else
+      return;
+    if (publishTaskResults())
+      notifyTaskResultsUpdated(ShadowUpdateScheduler.Priority.NORMAL);
+  }
+
+  /**
+   * Copies the retained results into the local shadow.
+   * @return true if the results changed
+   */
+  private boolean publishTaskResults()
+  {
+    PersistentMap<String, TaskResult> before =
+      shadowLocal.get().getTaskResults();
+    LocalShadow after = shadowLocal.updateAndGet(
+      shadow -> shadow.withTaskResults(taskResultStore.snapshot()));
+    return after.getTaskResults() != before;
+  }
+
+  /**
+   * @return Acknowledgements and latencies of classic shadow updates
+   */
+  public ShadowUpdateTracker getUpdateTracker()
+  {
+    return iotDevice.getUpdateTracker();
+  }
+
+  public TaskResultStore getTaskResultStore()
+  {
+    return taskResultStore;
+  }
+
+  /**
+   * @return Consistent snapshot of the local shadow
+   */
+  public LocalShadow getLocalShadow()
   {
     return shadowLocal.get();
   }
 
   public void updateBundles(List<BundleInfo> bundles)
   {
-    shadowLocal.updateAndGet(shadow -> {
-      shadow.state.reported.setBundles(bundles);
-      return shadow;
-    });
-    iotDevice.notifyLocalShadowUpdated();
+    shadowLocal.updateAndGet(shadow -> shadow.withBundles(bundles));
+    ShadowUpdateScheduler.Priority priority = isTransient(bundles) ?
+      ShadowUpdateScheduler.Priority.LOW :
+      ShadowUpdateScheduler.Priority.NORMAL;
+    if (inventoryShadow != null)
+      inventoryShadow.request(priority);
+    else
+      iotDevice.notifyLocalShadowUpdated(priority);
+  }
+
+  /**
+   * Compares the bundle digest of the backend with the local one. In steady
+   * state only changed inventory entries are reported, on a mismatch the
+   * full inventory is reported once.
+   * @param backendDigest Digest in desired, null if the backend has none
+   */
+  void onBackendBundlesDigest(String backendDigest)
+  {
+    BundleInventory inventory = getLocalShadow().getBundleInventory();
+    if (backendDigest == null || inventory == null ||
+        backendDigest.equals(inventory.getDigest()))
+      return;
+    if (backendDigest.equals(resentForDigest.getAndSet(backendDigest)))
+      return;
+    log.info("Bundle digest of backend {} differs from {}, reporting full " +
+             "inventory", backendDigest, inventory.getDigest());
+    if (inventoryShadow != null)
+      inventoryShadow.resendReported(BUNDLE_INVENTORY);
+    else
+      iotDevice.resendReported(BUNDLE_INVENTORY);
+  }
+
+  private void notifyTaskResultsUpdated(
+    ShadowUpdateScheduler.Priority priority)
+  {
+    if (tasksShadow != null)
+      tasksShadow.request(priority);
+    else
+      iotDevice.notifyLocalShadowUpdated(priority);
+  }
+
+  /**
+   * Moves bundles and task results to the named shadows "inventory" and
+   * "tasks", the classic shadow keeps device info, online state and the
+   * desired tasks.
+   */
+  private void createPartitions()
+  {
+    ObjectMapper mapper = IotDevice.createMapper();
+    inventoryShadow =
+      new ShadowPartition(context, INVENTORY_SHADOW,
+                          LocalShadow::toInventoryReported, mapper,
+                          IotDevice.updateIntervalMs);
+    tasksShadow =
+      new ShadowPartition(context, TASKS_SHADOW, LocalShadow::toTasksReported,
+                          mapper, IotDevice.updateIntervalMs);
+    partitions.add(inventoryShadow);
+    partitions.add(tasksShadow);
+    iotDevice.setReportedView(LocalShadow::toDeviceReported);
+    log.debug("Shadow partitioned into classic, '{}' and '{}' shadows",
+              INVENTORY_SHADOW, TASKS_SHADOW);
+  }
+
+  /**
+   * @return true while any bundle is starting or stopping, the state will
+   * change again shortly
+   */
+  private static boolean isTransient(List<BundleInfo> bundles)
+  {
+    for (BundleInfo bundle : bundles)
+    {
+      if (bundle.state == BundleState.STARTING ||
+          bundle.state == BundleState.STOPPING)
+        return true;
+    }
+    return false;
+  }
+
+  private TaskLedger createTaskLedger()
+  {
+    File file = context.getBundleContext().getDataFile(TASK_LEDGER_FILE);
+    if (file == null)
+    {
+      log.warn("No persistent storage available, task ledger disabled");
+      return null;
+    }
+    TaskLedger ledger =
+      new TaskLedger(file, context.getConfiguration().getTaskLedgerSize());
+    try
+    {
+      ledger.open();
+      return ledger;
+    }
+    catch (IOException e)
+    {
+      log.error("Failed to open task ledger, task ledger disabled", e);
+      return null;
+    }
+  }
+
+  private TaskResultStore createTaskResultStore()
+  {
+    ObjectMapper mapper = IotDevice.createMapper();
+    return new TaskResultStore(
+      context.getConfiguration().getTaskResultsMaxCount(),
+      context.getConfiguration().getTaskResultsMaxBytes(),
+      taskResult -> {
+        try
+        {
+          return mapper.writeValueAsBytes(taskResult).length;
+        }
+        catch (JsonProcessingException e)
+        {
+          return 0;
+        }
+      });
+  }
+
+  /**
+   * Takes over the task results of the last run, so finished tasks are not
+   * executed again after a restart.
+   */
+  private void restoreTaskResults(Reported cached)
+  {
+    if (cached == null || cached.taskResults == null)
+      return;
+    taskResultStore.restore(cached.taskResults);
+    publishTaskResults();
+    log.debug("Restored {} task results", taskResultStore.getResultCount());
   }
 
   private void populateDeviceInfo()
   {
-    shadowLocal.getAndUpdate(shadow -> {
-      Reported reported = shadow.state.reported;
-      reported.arch = System.getProperty("os.arch");
-      reported.osName = System.getProperty("os.name");
-      reported.osVersion = System.getProperty("os.version");
-      reported.javaRuntimeName = System.getProperty("java.runtime.name");
-      reported.javaRuntimeVersion = System.getProperty("java.runtime.version");
-      reported.vmAccelerationInfo = JamaicaVmInfo.getVmAccelerationInfoString();
-      return shadow;
-    });
+    LocalShadow.DeviceInfo deviceInfo =
+      new LocalShadow.DeviceInfo(System.getProperty("os.arch"),
+                                 System.getProperty("os.name"),
+                                 System.getProperty("os.version"),
+                                 System.getProperty("java.runtime.name"),
+                                 System.getProperty("java.runtime.version"),
+                                 JamaicaVmInfo.getVmAccelerationInfoString());
+    shadowLocal.updateAndGet(shadow -> shadow.withDeviceInfo(deviceInfo));
   }
 
   private void setOnline()
   {
-    shadowLocal.getAndUpdate(shadow -> {
-      shadow.state.reported.online = true;
-      iotDevice.notifyLocalShadowUpdated();
-      return shadow;
-    });
+    shadowLocal.updateAndGet(shadow -> shadow.withOnline(true));
+    iotDevice.notifyLocalShadowUpdated(ShadowUpdateScheduler.Priority.HIGH);
   }
 
+  /**
+   * Reports the device offline, retries failed updates with the backoff of
+   * the update scheduler until the offline timeout. Without a connection the
+   * last will reports it instead.
+   */
   private void setOffline()
   {
     log.trace("Setting device status offline");
-    shadowLocal.getAndUpdate(shadow -> {
-      shadow.state.reported.online = false;
-      return shadow;
-    });
-    iotDevice.updateImmediately();
+    shadowLocal.updateAndGet(shadow -> shadow.withOnline(false));
+    long deadline = System.currentTimeMillis() +
+                    context.getConfiguration().getShadowOfflineTimeoutMs();
+    try
+    {
+      long remaining;
+      while (isConnected() &&
+             (remaining = deadline - System.currentTimeMillis()) > 0)
+      {
+        if (iotDevice.updateImmediately()
+          .get(remaining, TimeUnit.MILLISECONDS))
+        {
+          log.debug("Offline state accepted");
+          return;
+        }
+        long backoffMs = Math.max(MIN_OFFLINE_RETRY_DELAY_MS,
+                                  iotDevice.getUpdateBackoffMs());
+        remaining = deadline - System.currentTimeMillis();
+        if (remaining > 0)
+          Thread.sleep(Math.min(backoffMs, remaining));
+      }
+    }
+    catch (TimeoutException e)
+    {
+      // Logged below
+    }
+    catch (ExecutionException e)
+    {
+      log.error("Failed to report offline state", e);
+      return;
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    log.warn("Offline state not acknowledged by the cloud");
   }
 
+  private boolean isConnected()
+  {
+    return context.getIotManager().getConnectionStatus() ==
+           AWSIotConnectionStatus.CONNECTED;
+  }
 
+  /**
+   * Logs the outcome and latency of the shadow updates.
+   */
+  private void logUpdateMetrics()
+  {
+    ShadowUpdateTracker tracker = iotDevice.getUpdateTracker();
+    StringBuilder rejectedByCode = new StringBuilder();
+    for (AWSIotDeviceErrorCode errorCode : AWSIotDeviceErrorCode.values())
+    {
+      long count = tracker.getRejectedCount(errorCode);
+      if (count > 0)
+      {
+        rejectedByCode.append(rejectedByCode.length() == 0 ? "" : ", ")
+          .append(errorCode).append('=').append(count);
+      }
+    }
+    log.info("Shadow updates: accepted={}, rejected={} [{}], timedOut={}, " +
+             "sendFailed={}, pending={}, latencyBucketsMs={}, latency={}",
+             tracker.getAcceptedCount(), tracker.getRejectedCount(),
+             rejectedByCode, tracker.getTimedOutCount(),
+             tracker.getSendFailedCount(), tracker.getPendingCount(),
+             Arrays.toString(ShadowUpdateTracker.getLatencyBucketBoundsMs()),
+             Arrays.toString(tracker.getLatencyHistogram()));
+  }
 }
 
@@ -0,0 +1,301 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.shadow;
+
+import com.aicas.edp.client.util.AsyncIotMsg;
+import com.aicas.edp.client.util.Context;
+import com.amazonaws.services.iot.client.AWSIotDeviceErrorCode;
+import com.amazonaws.services.iot.client.AWSIotException;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.amazonaws.services.iot.client.AWSIotTopic;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Part of the reported state that lives in its own named shadow.
+ * A partition reports its view of the local shadow independently of the
+ * other partitions, with its own baseline and update scheduler, so e.g. a
+ * bundle change never re-sends task results.
+ * The SDK only knows the classic shadow, named shadow updates are
+ * published directly and correlated with their responses by client token.
+ */
+@Slf4j
+public class ShadowPartition
+{
+  private static final String PREFIX = "$aws/things/";
+  private static final String NAMED_SHADOW_INFIX = "/shadow/name";
+  private static final long RESPONSE_TIMEOUT_MS = 30 * 1000;
+  private final Context context;
+  private final String name;
+  private final String topic;
+  private final Function<LocalShadow, Object> view;
+  private final ObjectMapper mapper;
+  private final ScheduledExecutorService executor =
+    Executors.newSingleThreadScheduledExecutor();
+  private final ShadowUpdateScheduler updateScheduler;
+  private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();
+  private final ShadowUpdateTracker updateTracker = new ShadowUpdateTracker();
+  private final AWSIotTopic acceptedListener;
+  private final AWSIotTopic rejectedListener;
+  private ObjectNode acceptedReported;
+  private volatile Consumer<ObjectNode> deltaFilter = delta -> { };
+  private long sequence;
+  private long acceptedSequence;
+
+  /**
+   * @param context Client context
+   * @param name Name of the shadow
+   * @param view Reported section of this shadow, derived from the local shadow
+   * @param mapper Serializer of the reported section
+   * @param intervalMs Minimum distance of normal priority updates
+   */
+  public ShadowPartition(Context context, String name,
+                         Function<LocalShadow, Object> view,
+                         ObjectMapper mapper, long intervalMs)
+  {
+    this.context = context;
+    this.name = name;
+    this.view = view;
+    this.mapper = mapper;
+    this.topic = PREFIX + context.getConfiguration().getThingName() +
+                 NAMED_SHADOW_INFIX + "/" + name + "/update";
+    updateScheduler =
+      new ShadowUpdateScheduler(executor, this::update, intervalMs,
+                                context.getConfiguration()
+                                  .getShadowLowPriorityIntervalMs(),
+                                context.getConfiguration()
+                                  .getShadowMaxBackoffMs());
+    acceptedListener = new ResponseListener(topic + "/accepted", true);
+    rejectedListener = new ResponseListener(topic + "/rejected", false);
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public void connect()
+    throws
+    AWSIotException
+  {
+    context.getIotManager().subscribe(acceptedListener);
+    context.getIotManager().subscribe(rejectedListener);
+    request(ShadowUpdateScheduler.Priority.NORMAL);
+  }
+
+  public void disconnect()
+    throws
+    AWSIotException
+  {
+    context.getIotManager().unsubscribe(acceptedListener);
+    context.getIotManager().unsubscribe(rejectedListener);
+  }
+
+  public void shutdown()
+  {
+    executor.shutdownNow();
+  }
+
+  public ShadowUpdateTracker getUpdateTracker()
+  {
+    return updateTracker;
+  }
+
+  public void request(ShadowUpdateScheduler.Priority priority)
+  {
+    updateScheduler.request(priority);
+  }
+
+  /**
+   * @param deltaFilter Adjusts the reported section of every update
+   */
+  public void setDeltaFilter(Consumer<ObjectNode> deltaFilter)
+  {
+    this.deltaFilter = deltaFilter;
+  }
+
+  /**
+   * Reports a field in full with the next update, whatever the cloud has
+   * accepted before.
+   */
+  public void resendReported(String field)
+  {
+    synchronized (this)
+    {
+      acceptedSequence = Math.max(acceptedSequence, sequence);
+      if (acceptedReported != null && acceptedReported.has(field))
+      {
+        acceptedReported = acceptedReported.deepCopy();
+        acceptedReported.remove(field);
+      }
+    }
+    request(ShadowUpdateScheduler.Priority.NORMAL);
+  }
+
+  private synchronized void update()
+  {
+    expireInFlight();
+    try
+    {
+      ObjectNode reported = mapper.valueToTree(
+        view.apply(context.getShadowManager().getLocalShadow()));
+      ObjectNode delta = ShadowDiff.diff(acceptedReported, reported);
+      deltaFilter.accept(delta);
+      if (delta.size() == 0)
+        return;
+      String clientToken = name + "-" + (++sequence);
+      ObjectNode document = mapper.createObjectNode();
+      document.putObject("state").set("reported", delta);
+      document.put("clientToken", clientToken);
+      inFlight.put(clientToken, new InFlight(reported, delta, sequence));
+      updateTracker.begin(clientToken);
+      log.debug("Updating shadow '{}' {}", name, document);
+      // A pending update is superseded by this one, it has the same baseline
+      context.getIotManager().publish(
+        new AsyncIotMsg(topic, AWSIotQos.QOS0,
+                        mapper.writeValueAsString(document)),
+        name);
+    }
+    catch (Throwable t)
+    {
+      log.error("Failed to update shadow '{}'", name, t);
+    }
+  }
+
+  private void onResponse(AWSIotMessage message, boolean accepted)
+  {
+    String clientToken;
+    try
+    {
+      JsonNode token =
+        mapper.readTree(message.getStringPayload()).get("clientToken");
+      clientToken = token == null ? null : token.asText();
+    }
+    catch (IOException e)
+    {
+      log.warn("Invalid response on '{}'", message.getTopic(), e);
+      return;
+    }
+    InFlight request = clientToken == null ? null : inFlight.remove(clientToken);
+    if (request == null)
+      return;
+    if (accepted)
+    {
+      updateTracker.onAccepted(clientToken);
+      updateScheduler.onUpdateAccepted();
+      context.getShadowManager().onReportedAccepted(request.delta, false);
+      synchronized (this)
+      {
+        if (request.sequence > acceptedSequence)
+        {
+          acceptedSequence = request.sequence;
+          acceptedReported = request.reported;
+        }
+      }
+    }
+    else
+    {
+      log.error("Update of shadow '{}' rejected: {}", name,
+                message.getStringPayload());
+      updateTracker.onRejected(clientToken, errorCode(message));
+      onFailure(request);
+    }
+  }
+
+  private void onFailure(InFlight request)
+  {
+    updateScheduler.onUpdateFailed();
+    synchronized (this)
+    {
+      // Cloud state unknown, report everything again
+      acceptedSequence = Math.max(acceptedSequence, request.sequence);
+      acceptedReported = null;
+    }
+    request(ShadowUpdateScheduler.Priority.NORMAL);
+  }
+
+  /**
+   * Treats updates without response as failed, e.g. lost while offline or
+   * superseded in the publish queue.
+   */
+  private void expireInFlight()
+  {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<String, InFlight>> it = inFlight.entrySet().iterator();
+    while (it.hasNext())
+    {
+      Map.Entry<String, InFlight> entry = it.next();
+      InFlight request = entry.getValue();
+      if (now - request.sentAt > RESPONSE_TIMEOUT_MS)
+      {
+        it.remove();
+        updateTracker.onTimeout(entry.getKey());
+        if (request.sequence > acceptedSequence)
+        {
+          log.debug("Update #{} of shadow '{}' timed out", request.sequence,
+                    name);
+          acceptedReported = null;
+        }
+      }
+    }
+  }
+
+  private AWSIotDeviceErrorCode errorCode(AWSIotMessage message)
+  {
+    try
+    {
+      JsonNode code = mapper.readTree(message.getStringPayload()).get("code");
+      return code == null ? null : AWSIotDeviceErrorCode.valueOf(code.asLong());
+    }
+    catch (IOException e)
+    {
+      return null;
+    }
+  }
+
+  private static class InFlight
+  {
+    final ObjectNode reported;
+    final ObjectNode delta;
+    final long sequence;
+    final long sentAt = System.currentTimeMillis();
+
+    InFlight(ObjectNode reported, ObjectNode delta, long sequence)
+    {
+      this.reported = reported;
+      this.delta = delta;
+      this.sequence = sequence;
+    }
+  }
+
+  private class ResponseListener extends AWSIotTopic
+  {
+    private final boolean accepted;
+
+    ResponseListener(String topic, boolean accepted)
+    {
+      super(topic, AWSIotQos.QOS0);
+      this.accepted = accepted;
+    }
+
+    @Override
+    public void onMessage(AWSIotMessage message)
+    {
+      onResponse(message, accepted);
+    }
+  }
+}
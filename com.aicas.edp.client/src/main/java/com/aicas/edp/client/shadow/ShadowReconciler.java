@@ -0,0 +1,190 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.shadow;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Periodic anti-entropy check of the reported state.
+ * Runs are spread uniformly between half and one and a half interval, so
+ * that a fleet started at the same time does not reconcile at the same
+ * moment. A run fetches the cloud shadow, the comparison of the cloud
+ * reported state with the locally assumed one is done by digest of their
+ * canonical form.
+ */
+@Slf4j
+public class ShadowReconciler
+{
+  private final ScheduledExecutorService executor;
+  private final Runnable reconcile;
+  private final long intervalMs;
+  private final AtomicLong runs = new AtomicLong();
+  private final AtomicLong mismatches = new AtomicLong();
+  private ScheduledFuture<?> scheduled;
+
+  /**
+   * @param executor Executor running the checks
+   * @param reconcile Starts a check
+   * @param intervalMs Mean distance of checks, 0 disables them
+   */
+  public ShadowReconciler(ScheduledExecutorService executor,
+                          Runnable reconcile, long intervalMs)
+  {
+    this.executor = executor;
+    this.reconcile = reconcile;
+    this.intervalMs = intervalMs;
+  }
+
+  public synchronized void start()
+  {
+    if (intervalMs <= 0 || scheduled != null)
+      return;
+    scheduleNext();
+  }
+
+  public synchronized void stop()
+  {
+    if (scheduled != null)
+    {
+      scheduled.cancel(false);
+      scheduled = null;
+    }
+  }
+
+  /**
+   * Records the result of a check.
+   * @param matched Whether cloud and local state agreed
+   */
+  void onChecked(boolean matched)
+  {
+    runs.incrementAndGet();
+    if (!matched)
+      mismatches.incrementAndGet();
+  }
+
+  public long getRunCount()
+  {
+    return runs.get();
+  }
+
+  public long getMismatchCount()
+  {
+    return mismatches.get();
+  }
+
+  /**
+   * @param state Reported state, null for none
+   * @return SHA-256 over the canonical JSON of the state: fields sorted by
+   * name and null fields, which do not exist in a shadow, left out
+   */
+  public static String digest(JsonNode state)
+  {
+    StringBuilder canonical = new StringBuilder();
+    appendCanonical(canonical, state);
+    try
+    {
+      byte[] hash = MessageDigest.getInstance("SHA-256")
+        .digest(canonical.toString().getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder(hash.length * 2);
+      for (byte b : hash)
+        hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+          .append(Character.forDigit(b & 0xf, 16));
+      return hex.toString();
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  private synchronized void scheduleNext()
+  {
+    long delay = ThreadLocalRandom.current()
+      .nextLong(intervalMs / 2, intervalMs + intervalMs / 2 + 1);
+    scheduled = executor.schedule(this::run, delay, TimeUnit.MILLISECONDS);
+    log.trace("Shadow reconciliation scheduled in {} ms", delay);
+  }
+
+  private void run()
+  {
+    synchronized (this)
+    {
+      if (scheduled == null)
+        return;
+    }
+    try
+    {
+      reconcile.run();
+    }
+    catch (Throwable t)
+    {
+      log.error("Shadow reconciliation failed", t);
+    }
+    synchronized (this)
+    {
+      if (scheduled != null)
+        scheduleNext();
+    }
+  }
+
+  private static void appendCanonical(StringBuilder out, JsonNode node)
+  {
+    if (node == null || node.isNull() || node.isMissingNode())
+    {
+      out.append("null");
+    }
+    else if (node.isObject())
+    {
+      List<String> names = new ArrayList<>();
+      Iterator<String> it = node.fieldNames();
+      while (it.hasNext())
+      {
+        String name = it.next();
+        if (!node.get(name).isNull())
+          names.add(name);
+      }
+      Collections.sort(names);
+      out.append('{');
+      for (int i = 0; i < names.size(); i++)
+      {
+        if (i > 0)
+          out.append(',');
+        out.append(TextNode.valueOf(names.get(i))).append(':');
+        appendCanonical(out, node.get(names.get(i)));
+      }
+      out.append('}');
+    }
+    else if (node.isArray())
+    {
+      out.append('[');
+      for (int i = 0; i < node.size(); i++)
+      {
+        if (i > 0)
+          out.append(',');
+        appendCanonical(out, node.get(i));
+      }
+      out.append(']');
+    }
+    else
+    {
+      out.append(node.toString());
+    }
+  }
+}
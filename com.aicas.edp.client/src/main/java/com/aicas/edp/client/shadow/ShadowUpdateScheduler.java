@@ -0,0 +1,203 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.shadow;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces local shadow changes into as few cloud updates as possible.
+ * How long a change may wait depends on its priority: high priority changes
+ * are flushed right away, normal ones at most once per interval and low
+ * value churn at most once per (longer) low priority interval. All changes
+ * pending at flush time go out in one update.
+ * Failed updates back off exponentially, the backoff delays every flush and
+ * is reset by the next accepted update.
+ * A sent update can hold further flushes until it is acknowledged, so that
+ * the next update is diffed against its outcome and carries the version it
+ * produced. Changes requested meanwhile go out once the hold is released.
+ */
+@Slf4j
+public class ShadowUpdateScheduler
+{
+  public enum Priority
+  {
+    HIGH,
+    NORMAL,
+    LOW
+  }
+
+  private final ScheduledExecutorService executor;
+  private final Runnable flush;
+  private final long intervalMs;
+  private final long lowPriorityIntervalMs;
+  private final long maxBackoffMs;
+  private ScheduledFuture<?> scheduled;
+  private Priority scheduledPriority;
+  private long scheduledAt;
+  private long lastFlushAt;
+  private long backoffMs;
+  private long heldUntil;
+  private ScheduledFuture<?> holdExpiry;
+  // Most urgent priority requested while held, null if none
+  private Priority heldPriority;
+
+  /**
+   * @param executor Executor running the flushes
+   * @param flush Sends the update
+   * @param intervalMs Minimum distance of normal priority updates
+   * @param lowPriorityIntervalMs Minimum distance of low priority updates
+   * @param maxBackoffMs Upper bound of the failure backoff
+   */
+  public ShadowUpdateScheduler(ScheduledExecutorService executor,
+                               Runnable flush, long intervalMs,
+                               long lowPriorityIntervalMs, long maxBackoffMs)
+  {
+    this.executor = executor;
+    this.flush = flush;
+    this.intervalMs = intervalMs;
+    this.lowPriorityIntervalMs = Math.max(intervalMs, lowPriorityIntervalMs);
+    this.maxBackoffMs = maxBackoffMs;
+  }
+
+  /**
+   * Requests an update, moves an already scheduled flush forward if the
+   * priority demands it.
+   * @param priority Priority of the change
+   */
+  public synchronized void request(Priority priority)
+  {
+    if (isHeld())
+    {
+      heldPriority = moreUrgent(heldPriority, priority);
+      log.trace("{} priority change waits for the update in flight",
+                priority);
+      return;
+    }
+    long now = System.currentTimeMillis();
+    long due = Math.max(now, dueTime(priority));
+    if (scheduled != null && !scheduled.isDone() && scheduledAt <= due)
+    {
+      log.trace("{} priority change joins update due in {} ms", priority,
+                scheduledAt - now);
+      return;
+    }
+    if (scheduled != null)
+      scheduled.cancel(false);
+    scheduledAt = due;
+    scheduledPriority = moreUrgent(scheduledPriority, priority);
+    scheduled =
+      executor.schedule(this::runFlush, due - now, TimeUnit.MILLISECONDS);
+    log.trace("{} priority update scheduled in {} ms", priority, due - now);
+  }
+
+  /**
+   * Holds flushes until the update just sent is acknowledged.
+   * @param timeoutMs Time after which the hold is released anyway
+   */
+  public synchronized void hold(long timeoutMs)
+  {
+    heldUntil = System.currentTimeMillis() + timeoutMs;
+    if (holdExpiry != null)
+      holdExpiry.cancel(false);
+    holdExpiry =
+      executor.schedule(this::release, timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return true while an update in flight holds further flushes
+   */
+  public synchronized boolean isHeld()
+  {
+    return heldUntil != 0 && System.currentTimeMillis() < heldUntil;
+  }
+
+  /**
+   * Resets the backoff after an accepted update and releases the hold.
+   */
+  public synchronized void onUpdateAccepted()
+  {
+    backoffMs = 0;
+    release();
+  }
+
+  /**
+   * Doubles the backoff after a rejected or timed out update.
+   */
+  public synchronized void onUpdateFailed()
+  {
+    backoffMs =
+      backoffMs == 0 ? intervalMs : Math.min(maxBackoffMs, backoffMs * 2);
+    log.debug("Shadow update failed, backing off {} ms", backoffMs);
+    release();
+  }
+
+  public synchronized long getBackoffMs()
+  {
+    return backoffMs;
+  }
+
+  private long dueTime(Priority priority)
+  {
+    long delay;
+    switch (priority)
+    {
+    case HIGH:
+      delay = 0;
+      break;
+    case LOW:
+      delay = lowPriorityIntervalMs;
+      break;
+    case NORMAL:
+    default:
+      delay = intervalMs;
+    }
+    return lastFlushAt + Math.max(delay, backoffMs);
+  }
+
+  private synchronized void release()
+  {
+    heldUntil = 0;
+    if (holdExpiry != null)
+    {
+      holdExpiry.cancel(false);
+      holdExpiry = null;
+    }
+    Priority priority = heldPriority;
+    heldPriority = null;
+    if (priority != null)
+      request(priority);
+  }
+
+  private void runFlush()
+  {
+    synchronized (this)
+    {
+      Priority priority = scheduledPriority;
+      scheduled = null;
+      scheduledPriority = null;
+      if (isHeld())
+      {
+        // Scheduled before the hold, goes out after it
+        heldPriority = moreUrgent(heldPriority, priority);
+        return;
+      }
+      lastFlushAt = System.currentTimeMillis();
+    }
+    flush.run();
+  }
+
+  private static Priority moreUrgent(Priority a, Priority b)
+  {
+    if (a == null)
+      return b;
+    if (b == null)
+      return a;
+    return a.ordinal() <= b.ordinal() ? a : b;
+  }
+}
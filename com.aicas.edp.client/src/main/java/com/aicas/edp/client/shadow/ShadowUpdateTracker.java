@@ -0,0 +1,163 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.shadow;
+
+import com.amazonaws.services.iot.client.AWSIotDeviceErrorCode;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Correlates shadow updates with their accepted or rejected response by
+ * client token.
+ * Keeps a histogram of the time to acknowledgement and counts rejections
+ * by error code. Callers may wait for the outcome of an update, e.g. for
+ * the offline update on disconnect.
+ */
+public class ShadowUpdateTracker
+{
+  // Upper bounds of the latency buckets, the last bucket is unbounded
+  private static final long[] BUCKET_BOUNDS_MS =
+    {50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+  private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+  private final AtomicLongArray latency =
+    new AtomicLongArray(BUCKET_BOUNDS_MS.length + 1);
+  private final Map<AWSIotDeviceErrorCode, AtomicLong> rejectedByCode =
+    new ConcurrentHashMap<>();
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+  private final AtomicLong sendFailed = new AtomicLong();
+
+  /**
+   * Starts tracking an update, call before it is sent.
+   * @param clientToken Token of the update
+   * @return Completed with true when the update is accepted, false if it
+   * was rejected, timed out or could not be sent
+   */
+  public CompletableFuture<Boolean> begin(String clientToken)
+  {
+    Pending update = new Pending();
+    pending.put(clientToken, update);
+    return update.outcome;
+  }
+
+  public void onAccepted(String clientToken)
+  {
+    Pending update = pending.remove(clientToken);
+    if (update == null)
+      return;
+    accepted.incrementAndGet();
+    recordLatency(System.nanoTime() - update.sentAt);
+    update.outcome.complete(true);
+  }
+
+  /**
+   * @param errorCode Error code of the rejection, null if unknown
+   */
+  public void onRejected(String clientToken, AWSIotDeviceErrorCode errorCode)
+  {
+    Pending update = pending.remove(clientToken);
+    if (update == null)
+      return;
+    rejected.incrementAndGet();
+    if (errorCode != null)
+    {
+      rejectedByCode.computeIfAbsent(errorCode, code -> new AtomicLong())
+        .incrementAndGet();
+    }
+    recordLatency(System.nanoTime() - update.sentAt);
+    update.outcome.complete(false);
+  }
+
+  public void onTimeout(String clientToken)
+  {
+    Pending update = pending.remove(clientToken);
+    if (update == null)
+      return;
+    timedOut.incrementAndGet();
+    update.outcome.complete(false);
+  }
+
+  public void onSendFailed(String clientToken)
+  {
+    Pending update = pending.remove(clientToken);
+    if (update == null)
+      return;
+    sendFailed.incrementAndGet();
+    update.outcome.complete(false);
+  }
+
+  public int getPendingCount()
+  {
+    return pending.size();
+  }
+
+  public long getAcceptedCount()
+  {
+    return accepted.get();
+  }
+
+  public long getRejectedCount()
+  {
+    return rejected.get();
+  }
+
+  public long getRejectedCount(AWSIotDeviceErrorCode errorCode)
+  {
+    AtomicLong count = rejectedByCode.get(errorCode);
+    return count == null ? 0 : count.get();
+  }
+
+  public long getTimedOutCount()
+  {
+    return timedOut.get();
+  }
+
+  public long getSendFailedCount()
+  {
+    return sendFailed.get();
+  }
+
+  /**
+   * @return Upper bounds of the latency buckets in ms, there is one more,
+   * unbounded bucket
+   */
+  public static long[] getLatencyBucketBoundsMs()
+  {
+    return Arrays.copyOf(BUCKET_BOUNDS_MS, BUCKET_BOUNDS_MS.length);
+  }
+
+  /**
+   * @return Number of acknowledged updates per latency bucket
+   */
+  public long[] getLatencyHistogram()
+  {
+    long[] histogram = new long[latency.length()];
+    for (int i = 0; i < histogram.length; i++)
+      histogram[i] = latency.get(i);
+    return histogram;
+  }
+
+  private void recordLatency(long nanos)
+  {
+    long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+    int bucket = 0;
+    while (bucket < BUCKET_BOUNDS_MS.length && ms > BUCKET_BOUNDS_MS[bucket])
+      bucket++;
+    latency.incrementAndGet(bucket);
+  }
+
+  private static class Pending
+  {
+    final long sentAt = System.nanoTime();
+    final CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+  }
+}
@@ -0,0 +1,279 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.shadow;
+
+import com.aicas.edp.client.common.task.TaskResult;
+import com.aicas.edp.client.util.PersistentMap;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Retention of reported task results.
+ * A result is reported until the backend removes its task from desired, it
+ * is then released: reported as null once and dropped after the cloud
+ * accepted the removal. Housekeeping is driven by these events, there is no
+ * scan of all results.
+ * The number and the serialized size of retained results are bounded. When
+ * a budget is exceeded, the least recently used results that the cloud has
+ * already accepted are evicted from memory only: the cloud keeps them, no
+ * removal is reported, see {@link #retainEvicted(ObjectNode)}. Results the
+ * cloud has not seen yet are never evicted. The task id of an evicted
+ * result is kept, its removal is reported once the task leaves desired.
+ */
+@Slf4j
+public class TaskResultStore
+{
+  private static final String TASK_RESULTS = "taskResults";
+  private final int maxResults;
+  private final long maxBytes;
+  private final ToIntFunction<TaskResult> sizer;
+  // Access ordered, the first entry is the least recently used
+  private final LinkedHashMap<String, Entry> entries =
+    new LinkedHashMap<>(16, 0.75f, true);
+  private PersistentMap<String, TaskResult> results = PersistentMap.empty();
+  private int liveResults;
+  private long footprintBytes;
+  private long evicted;
+
+  /**
+   * @param maxResults Maximum number of retained results
+   * @param maxBytes Maximum serialized size of retained results
+   * @param sizer Serialized size of a result
+   */
+  public TaskResultStore(int maxResults, long maxBytes,
+                         ToIntFunction<TaskResult> sizer)
+  {
+    this.maxResults = maxResults;
+    this.maxBytes = maxBytes;
+    this.sizer = sizer;
+  }
+
+  /**
+   * @return Results to report, a null value reports a removal
+   */
+  public synchronized PersistentMap<String, TaskResult> snapshot()
+  {
+    return results;
+  }
+
+  public synchronized boolean contains(String taskId)
+  {
+    return entries.containsKey(taskId);
+  }
+
+  /**
+   * Takes over results of an earlier run, they count as not yet accepted.
+   */
+  public synchronized void restore(Map<String, TaskResult> restored)
+  {
+    restored.forEach((taskId, taskResult) -> {
+      if (taskResult != null)
+        put(taskId, taskResult, true);
+    });
+  }
+
+  /**
+   * Stores a result.
+   * @param desired Whether the task is still in desired, otherwise the
+   *                result is released right away
+   */
+  public synchronized void put(String taskId, TaskResult taskResult,
+                               boolean desired)
+  {
+    Entry entry = entries.get(taskId);
+    if (entry != null && entry.isLive())
+    {
+      liveResults--;
+      footprintBytes -= entry.bytes;
+    }
+    entry = new Entry(sizer.applyAsInt(taskResult));
+    entries.put(taskId, entry);
+    results = results.plus(taskId, taskResult);
+    liveResults++;
+    footprintBytes += entry.bytes;
+    if (!desired)
+      release(taskId, entry);
+    enforceBudget();
+  }
+
+  /**
+   * The backend removed tasks from desired, it has seen their results.
+   */
+  public synchronized void onTasksRemoved(Collection<String> taskIds)
+  {
+    for (String taskId : taskIds)
+    {
+      Entry entry = entries.get(taskId);
+      if (entry != null)
+        release(taskId, entry);
+    }
+  }
+
+  /**
+   * The cloud accepted reported task results.
+   * @param accepted Accepted {@code taskResults} section, null values are
+   *                 accepted removals
+   */
+  public synchronized void onAccepted(JsonNode accepted)
+  {
+    if (accepted == null || !accepted.isObject())
+      return;
+    Iterator<Map.Entry<String, JsonNode>> fields = accepted.fields();
+    while (fields.hasNext())
+    {
+      Map.Entry<String, JsonNode> field = fields.next();
+      Entry entry = entries.get(field.getKey());
+      if (entry == null)
+        continue;
+      if (field.getValue().isNull())
+      {
+        if (entry.released)
+        {
+          entries.remove(field.getKey());
+          results = results.minus(field.getKey());
+        }
+      }
+      else
+      {
+        entry.acknowledged = true;
+      }
+    }
+    enforceBudget();
+  }
+
+  /**
+   * Reconciles with the {@code taskResults} of a fetched cloud shadow,
+   * released and evicted results the cloud no longer has are dropped.
+   */
+  public synchronized void onCloudState(JsonNode cloudTaskResults)
+  {
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext())
+    {
+      Map.Entry<String, Entry> candidate = it.next();
+      if (!candidate.getValue().isLive() &&
+          (cloudTaskResults == null || !cloudTaskResults.has(candidate.getKey())))
+      {
+        it.remove();
+        results = results.minus(candidate.getKey());
+      }
+    }
+    onAccepted(cloudTaskResults);
+  }
+
+  public synchronized int getResultCount()
+  {
+    return liveResults;
+  }
+
+  /**
+   * @return Serialized size of the retained results
+   */
+  public synchronized long getFootprintBytes()
+  {
+    return footprintBytes;
+  }
+
+  public synchronized long getEvictedCount()
+  {
+    return evicted;
+  }
+
+  /**
+   * Drops removals of evicted results from the reported section of an
+   * update, the cloud keeps them. Removals of released results stay.
+   * @param delta Reported section of an update
+   */
+  public synchronized void retainEvicted(ObjectNode delta)
+  {
+    JsonNode taskResults = delta.get(TASK_RESULTS);
+    if (taskResults == null)
+      return;
+    if (!taskResults.isObject())
+    {
+      // No result left to report, the section is only dropped by the
+      // removals of its entries
+      delta.remove(TASK_RESULTS);
+      return;
+    }
+    Iterator<Map.Entry<String, JsonNode>> fields = taskResults.fields();
+    while (fields.hasNext())
+    {
+      Map.Entry<String, JsonNode> field = fields.next();
+      if (field.getValue().isNull() && !results.containsKey(field.getKey()))
+        fields.remove();
+    }
+    if (taskResults.size() == 0)
+      delta.remove(TASK_RESULTS);
+  }
+
+  private void release(String taskId, Entry entry)
+  {
+    if (entry.released)
+      return;
+    if (entry.isLive())
+    {
+      liveResults--;
+      footprintBytes -= entry.bytes;
+    }
+    entry.released = true;
+    results = results.plus(taskId, null);
+  }
+
+  private void enforceBudget()
+  {
+    if (liveResults <= maxResults && footprintBytes <= maxBytes)
+      return;
+    Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+    while (it.hasNext() &&
+           (liveResults > maxResults || footprintBytes > maxBytes))
+    {
+      Map.Entry<String, Entry> candidate = it.next();
+      Entry entry = candidate.getValue();
+      if (entry.acknowledged && entry.isLive())
+      {
+        entry.evicted = true;
+        liveResults--;
+        footprintBytes -= entry.bytes;
+        results = results.minus(candidate.getKey());
+        evicted++;
+        log.debug("Evicted result of task {} to stay within budget",
+                  candidate.getKey());
+      }
+    }
+    if (liveResults > maxResults || footprintBytes > maxBytes)
+    {
+      log.debug("Task results over budget ({} results, {} bytes), " +
+                "waiting for the cloud to accept them", liveResults,
+                footprintBytes);
+    }
+  }
+
+  private static class Entry
+  {
+    final int bytes;
+    boolean acknowledged;
+    // Dropped from memory, the cloud keeps the result
+    boolean evicted;
+    boolean released;
+
+    Entry(int bytes)
+    {
+      this.bytes = bytes;
+    }
+
+    boolean isLive()
+    {
+      return !evicted && !released;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.shadow;
+
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+
+/**
+ * Shadow update carrying a reported delta, remembers the full reported state
+ * it was computed from so that it can become the new baseline once the
+ * update is accepted.
+ */
+@Slf4j
+public class UpdateShadowMessage extends AWSIotMessage
+{
+  private static final ObjectMapper MAPPER = new ObjectMapper();
+  private final IotDevice iotDevice;
+  private final ObjectNode reported;
+  private final ObjectNode delta;
+  private final long sequence;
+  private final String clientToken;
+
+  /**
+   * @param clientToken Token the update is tracked by
+   */
+  public UpdateShadowMessage(IotDevice iotDevice, String payload,
+                             ObjectNode reported, ObjectNode delta,
+                             long sequence, String clientToken)
+  {
+    super(null, AWSIotQos.QOS0, payload);
+    this.iotDevice = iotDevice;
+    this.reported = reported;
+    this.delta = delta;
+    this.sequence = sequence;
+    this.clientToken = clientToken;
+  }
+
+  @Override
+  public void onSuccess()
+  {
+    log.trace("Shadow update #{} accepted", sequence);
+    iotDevice.getUpdateTracker().onAccepted(clientToken);
+    iotDevice.onUpdateAccepted(reported, delta, sequence,
+                               acceptedVersion());
+  }
+
+  /**
+   * @return Shadow version from the accepted document, if present
+   */
+  private Long acceptedVersion()
+  {
+    String payload = getStringPayload();
+    if (payload == null)
+      return null;
+    try
+    {
+      JsonNode version = MAPPER.readTree(payload).get("version");
+      return version != null && version.canConvertToLong() ?
+        version.asLong() : null;
+    }
+    catch (IOException e)
+    {
+      log.debug("Failed to read version of accepted update", e);
+      return null;
+    }
+  }
+
+  @Override
+  public void onFailure()
+  {
+    log.error(
+      "Shadow update #{} rejected. errorCode: {}, errorMessage: {}",
+      sequence, this.getErrorCode(), this.getErrorMessage());
+    iotDevice.getUpdateTracker().onRejected(clientToken, this.getErrorCode());
+    iotDevice.onUpdateFailed(sequence, this.getErrorCode());
+  }
+
+  @Override
+  public void onTimeout()
+  {
+    log.error("Shadow update #{} timed out", sequence);
+    iotDevice.getUpdateTracker().onTimeout(clientToken);
+    iotDevice.onUpdateFailed(sequence, null);
+  }
+}
@@ -0,0 +1,176 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.task;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Workers and bounded queue of one kind of task, e.g. deployments.
+ * Tasks of other bulkheads keep running when all workers of this one are
+ * stuck, and a full queue rejects new tasks instead of piling them up.
+ */
+@Slf4j
+public class Bulkhead
+{
+  private final String name;
+  private final int workerCount;
+  private final int queueCapacity;
+  private final ExecutorService workers;
+  private final TaskQueue<Runnable> queue;
+  private final AtomicInteger active = new AtomicInteger();
+  private final AtomicLong accepted = new AtomicLong();
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong completed = new AtomicLong();
+  private int peakQueued;
+
+  /**
+   * @param name Name of the bulkhead, used for its threads
+   * @param workerCount Number of worker threads
+   * @param queueCapacity Maximum number of waiting tasks
+   * @param agingMs Waiting time that raises a queued task by one priority
+   *                class
+   */
+  public Bulkhead(String name, int workerCount, int queueCapacity,
+                  long agingMs)
+  {
+    this.name = name;
+    this.workerCount = Math.max(1, workerCount);
+    this.queueCapacity = Math.max(0, queueCapacity);
+    queue = new TaskQueue<>(agingMs);
+    AtomicInteger threads = new AtomicInteger();
+    workers = Executors.newFixedThreadPool(
+      this.workerCount,
+      r -> new Thread(r, "edp-task-" + name + "-" + threads.incrementAndGet()));
+    log.debug("Bulkhead {} started with {} workers and {} queue slots", name,
+              this.workerCount, this.queueCapacity);
+  }
+
+  /**
+   * Queues work, it runs on a worker of this bulkhead once it is the most
+   * urgent work waiting.
+   * @throws RejectedExecutionException if the queue is full
+   */
+  public <T> CompletableFuture<T> submit(TaskPriority priority,
+                                         long timestamp,
+                                         Supplier<T> work)
+  {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    synchronized (this)
+    {
+      if (queue.size() >= queueCapacity + idleWorkers())
+      {
+        rejected.incrementAndGet();
+        throw new RejectedExecutionException("Bulkhead " + name + " is full");
+      }
+      queue.add(priority, timestamp, () -> {
+        active.incrementAndGet();
+        try
+        {
+          future.complete(work.get());
+        }
+        catch (Throwable t)
+        {
+          future.completeExceptionally(t);
+        }
+        finally
+        {
+          active.decrementAndGet();
+          completed.incrementAndGet();
+        }
+      });
+      peakQueued = Math.max(peakQueued, queue.size());
+    }
+    accepted.incrementAndGet();
+    // Every submission gets one run, which picks the most urgent work
+    workers.execute(this::runNext);
+    return future;
+  }
+
+  public String getName()
+  {
+    return name;
+  }
+
+  public int getWorkerCount()
+  {
+    return workerCount;
+  }
+
+  public int getQueueCapacity()
+  {
+    return queueCapacity;
+  }
+
+  /**
+   * @return Number of tasks running
+   */
+  public int getActiveCount()
+  {
+    return active.get();
+  }
+
+  /**
+   * @return Number of tasks waiting for a worker
+   */
+  public int getQueuedCount()
+  {
+    return queue.size();
+  }
+
+  public synchronized int getPeakQueuedCount()
+  {
+    return peakQueued;
+  }
+
+  public long getAcceptedCount()
+  {
+    return accepted.get();
+  }
+
+  public long getRejectedCount()
+  {
+    return rejected.get();
+  }
+
+  public long getCompletedCount()
+  {
+    return completed.get();
+  }
+
+  /**
+   * @return Share of workers and queue slots in use, 1 when the next task
+   * is rejected
+   */
+  public double getSaturation()
+  {
+    return Math.min(1.0, (double) (getActiveCount() + getQueuedCount()) /
+                         (workerCount + queueCapacity));
+  }
+
+  public void shutdown()
+  {
+    workers.shutdownNow();
+  }
+
+  private int idleWorkers()
+  {
+    return Math.max(0, workerCount - active.get());
+  }
+
+  private void runNext()
+  {
+    Runnable next = queue.poll();
+    if (next != null)
+      next.run();
+  }
+}
@@ -0,0 +1,142 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.task;
+
+import com.aicas.edp.client.common.task.TaskStatus;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cooperative cancellation of a running task.
+ * Handlers check {@link #isCancelled()} between steps and register hooks
+ * that abort blocking I/O, e.g. closing a connection. Cancelling also
+ * interrupts the thread executing the task.
+ */
+@Slf4j
+public class CancellationToken
+{
+  /**
+   * Token that is never cancelled
+   */
+  public static final CancellationToken NONE = new CancellationToken();
+  private final List<Runnable> hooks = new ArrayList<>();
+  private TaskStatus reason;
+  private Thread executor;
+
+  /**
+   * @param reason {@link TaskStatus#CANCELLED} or
+   *               {@link TaskStatus#TIMED_OUT}
+   * @return false if the token was cancelled before
+   */
+  public boolean cancel(TaskStatus reason)
+  {
+    List<Runnable> toRun;
+    synchronized (this)
+    {
+      if (this == NONE || this.reason != null)
+        return false;
+      this.reason = reason;
+      toRun = new ArrayList<>(hooks);
+      hooks.clear();
+      if (executor != null)
+        executor.interrupt();
+    }
+    toRun.forEach(this::runHook);
+    return true;
+  }
+
+  public synchronized boolean isCancelled()
+  {
+    return reason != null;
+  }
+
+  /**
+   * @return Why the task was cancelled, null if it was not
+   */
+  public synchronized TaskStatus getReason()
+  {
+    return reason;
+  }
+
+  /**
+   * @throws CancelledException if the token is cancelled
+   */
+  public void throwIfCancelled()
+    throws
+    CancelledException
+  {
+    TaskStatus cancelled = getReason();
+    if (cancelled != null)
+      throw new CancelledException(cancelled);
+  }
+
+  /**
+   * Registers a hook run on cancellation, right away if the token is
+   * cancelled already.
+   * @return Removes the hook again, e.g. once the I/O it aborts has ended
+   */
+  public Runnable onCancel(Runnable hook)
+  {
+    if (this == NONE)
+      return () -> { };
+    synchronized (this)
+    {
+      if (reason == null)
+      {
+        hooks.add(hook);
+        return () -> removeHook(hook);
+      }
+    }
+    runHook(hook);
+    return () -> { };
+  }
+
+  /**
+   * Binds the token to the thread executing the task, null to unbind.
+   */
+  synchronized void setExecutor(Thread executor)
+  {
+    this.executor = executor;
+  }
+
+  private synchronized void removeHook(Runnable hook)
+  {
+    hooks.remove(hook);
+  }
+
+  private void runHook(Runnable hook)
+  {
+    try
+    {
+      hook.run();
+    }
+    catch (Exception e)
+    {
+      log.warn("Cancellation hook failed", e);
+    }
+  }
+
+  /**
+   * Thrown by handlers that noticed the cancellation.
+   */
+  public static class CancelledException extends Exception
+  {
+    private final TaskStatus reason;
+
+    public CancelledException(TaskStatus reason)
+    {
+      super("Task " + (reason == TaskStatus.TIMED_OUT ? "timed out" :
+        "cancelled"));
+      this.reason = reason;
+    }
+
+    public TaskStatus getReason()
+    {
+      return reason;
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.task;
+
+import com.aicas.edp.client.common.task.BasicTaskResult;
+import com.aicas.edp.client.common.task.Task;
+import com.aicas.edp.client.common.task.TaskResult;
+import com.aicas.edp.client.common.task.TaskStatus;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Serves identical read-only tasks from one execution.
+ * Tasks with the same key share the execution in flight, or the successful
+ * result of one that finished within the freshness window. Every task gets
+ * its own result carrying its own task id: a copy of a successful result,
+ * otherwise a plain result with the same status.
+ * An execution in flight counts its tasks. Cancelling one of them only
+ * detaches it, the execution itself is cancelled with its last task.
+ */
+@Slf4j
+public class TaskCoalescer
+{
+  private final long freshnessMs;
+  private final Map<String, Execution> executions = new HashMap<>();
+  private long executionCount;
+  private long coalescedCount;
+
+  /**
+   * @param freshnessMs How long a successful result is served to new
+   *                    tasks, 0 to share executions in flight only
+   */
+  public TaskCoalescer(long freshnessMs)
+  {
+    this.freshnessMs = Math.max(0, freshnessMs);
+  }
+
+  /**
+   * @param key Coalescing key of the task
+   * @param task Task to execute
+   * @param token Cancellation of this task only
+   * @param copy Copies a successful result of the key
+   * @param run Executes the task with the cancellation of the shared
+   *            execution, if there is nothing to share
+   * @return Own result of the task
+   */
+  public CompletableFuture<TaskResult> execute(
+    String key, Task task, CancellationToken token,
+    Function<TaskResult, TaskResult> copy,
+    Function<CancellationToken, CompletableFuture<TaskResult>> run)
+  {
+    Execution execution;
+    boolean owner = false;
+    synchronized (this)
+    {
+      long now = System.currentTimeMillis();
+      executions.values().removeIf(e -> e.isStale(now, freshnessMs));
+      execution = executions.get(key);
+      if (execution == null)
+      {
+        execution = new Execution();
+        executions.put(key, execution);
+        executionCount++;
+        owner = true;
+      }
+      else
+      {
+        coalescedCount++;
+        log.debug("Task {} shares the execution of {}", task.getId(), key);
+      }
+      execution.tasks++;
+    }
+    if (owner)
+      start(key, execution, run);
+    CompletableFuture<TaskResult> own = new CompletableFuture<>();
+    Execution shared = execution;
+    Runnable removeHook =
+      token.onCancel(() -> detach(key, shared, task, token, own));
+    execution.result.whenComplete((result, throwable) -> {
+      removeHook.run();
+      if (throwable != null)
+        own.completeExceptionally(throwable);
+      else
+        own.complete(resultFor(task, result, copy));
+    });
+    return own;
+  }
+
+  /**
+   * Drops finished results, e.g. after a task changed what they report.
+   */
+  public synchronized void invalidate()
+  {
+    executions.values().removeIf(e -> e.finished != 0);
+  }
+
+  /**
+   * @return Number of executions started
+   */
+  public synchronized long getExecutionCount()
+  {
+    return executionCount;
+  }
+
+  /**
+   * @return Number of tasks served from another execution
+   */
+  public synchronized long getCoalescedCount()
+  {
+    return coalescedCount;
+  }
+
+  private void start(String key, Execution execution,
+                     Function<CancellationToken, CompletableFuture<TaskResult>> run)
+  {
+    CompletableFuture<TaskResult> result;
+    try
+    {
+      result = run.apply(execution.token);
+    }
+    catch (RuntimeException e)
+    {
+      result = new CompletableFuture<>();
+      result.completeExceptionally(e);
+    }
+    result.whenComplete((taskResult, throwable) -> {
+      synchronized (this)
+      {
+        // Only successful results are served to later tasks
+        if (throwable != null || taskResult.getStatus() != TaskStatus.SUCCEEDED)
+          executions.remove(key, execution);
+        else
+          execution.finished = System.currentTimeMillis();
+      }
+      if (throwable != null)
+        execution.result.completeExceptionally(throwable);
+      else
+        execution.result.complete(taskResult);
+    });
+  }
+
+  /**
+   * A task of the execution was cancelled. The last task cancels the
+   * execution and reports its outcome, the others report the cancellation
+   * right away.
+   */
+  private void detach(String key, Execution execution, Task task,
+                      CancellationToken token, CompletableFuture<TaskResult> own)
+  {
+    boolean last;
+    synchronized (this)
+    {
+      last = --execution.tasks == 0 && !execution.result.isDone();
+      if (last)
+        executions.remove(key, execution);
+    }
+    if (last)
+    {
+      execution.token.cancel(token.getReason());
+      return;
+    }
+    TaskResult cancelled = new BasicTaskResult();
+    cancelled.setTaskId(task.getId());
+    cancelled.setStatus(token.getReason());
+    cancelled.setMessage(TaskManager.cancelledMessage(token.getReason()));
+    cancelled.setFinished(LocalDateTime.now());
+    own.complete(cancelled);
+  }
+
+  private static TaskResult resultFor(Task task, TaskResult shared,
+                                      Function<TaskResult, TaskResult> copy)
+  {
+    TaskResult own = null;
+    if (shared.getStatus() == TaskStatus.SUCCEEDED)
+    {
+      try
+      {
+        own = copy.apply(shared);
+      }
+      catch (RuntimeException e)
+      {
+        log.error("Failed to copy result of task {}", shared.getTaskId(), e);
+      }
+    }
+    if (own == null)
+    {
+      // E.g. rejected by a full bulkhead or cancelled, not the handler's
+      // result type
+      own = new BasicTaskResult();
+      own.setStatus(shared.getStatus());
+      own.setMessage(shared.getMessage());
+      own.setStarted(shared.getStarted());
+      own.setFinished(shared.getFinished());
+    }
+    own.setTaskId(task.getId());
+    return own;
+  }
+
+  private static class Execution
+  {
+    final CompletableFuture<TaskResult> result = new CompletableFuture<>();
+    final CancellationToken token = new CancellationToken();
+    // Tasks waiting for the execution, guarded by the coalescer
+    int tasks;
+    long finished;
+
+    boolean isStale(long now, long freshnessMs)
+    {
+      return finished != 0 && now - finished >= freshnessMs;
+    }
+  }
+}
@@ -0,0 +1,161 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.task;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+
+/**
+ * Runs tasks on bulkheads, serializing only tasks that touch the same
+ * resources.
+ * Each kind of task runs on its own {@link Bulkhead}, so a stuck task only
+ * holds up tasks of its kind. A resource is a name, e.g.
+ * {@link #bundle(String)}. Resources are mapped to a fixed number of lock
+ * stripes shared by all bulkheads, a task holds the stripes of all its
+ * resources while it runs. The {@link #FRAMEWORK} resource stands for the
+ * whole framework, a task declaring it runs alone. Stripes are taken in
+ * ascending order, so tasks with overlapping resources cannot deadlock.
+ */
+public class TaskEngine
+{
+  /**
+   * Resource of tasks that may affect any bundle
+   */
+  public static final String FRAMEWORK = "framework";
+  private static final String BUNDLE_PREFIX = "bundle:";
+  private static final int STRIPES = 32;
+  private final long agingMs;
+  private final Map<String, Bulkhead> bulkheads = new ConcurrentHashMap<>();
+  private final ReentrantReadWriteLock frameworkLock =
+    new ReentrantReadWriteLock();
+  private final Lock[] stripes = new Lock[STRIPES];
+
+  /**
+   * @param agingMs Waiting time that raises a queued task by one priority
+   *                class
+   */
+  public TaskEngine(long agingMs)
+  {
+    this.agingMs = agingMs;
+    for (int i = 0; i < STRIPES; i++)
+      stripes[i] = new ReentrantLock();
+  }
+
+  /**
+   * Creates a bulkhead, replacing one of the same name.
+   * @param workerCount Number of worker threads
+   * @param queueCapacity Maximum number of waiting tasks
+   */
+  public Bulkhead addBulkhead(String name, int workerCount, int queueCapacity)
+  {
+    Bulkhead bulkhead =
+      new Bulkhead(name, workerCount, queueCapacity, agingMs);
+    Bulkhead previous = bulkheads.put(name, bulkhead);
+    if (previous != null)
+      previous.shutdown();
+    return bulkhead;
+  }
+
+  /**
+   * @return Bulkheads by name
+   */
+  public Map<String, Bulkhead> getBulkheads()
+  {
+    return Collections.unmodifiableMap(bulkheads);
+  }
+
+  /**
+   * @return Resource of the bundle with the given symbolic name
+   */
+  public static String bundle(String symbolicName)
+  {
+    return BUNDLE_PREFIX + symbolicName;
+  }
+
+  /**
+   * Queues work on a bulkhead, it runs on a worker of the bulkhead once it
+   * is the most urgent work waiting and the locks of its resources are
+   * available.
+   * @param bulkhead Name of the bulkhead
+   * @param priority Priority class of the work
+   * @param timestamp Creation time, orders work of the same class
+   * @param resources Resources the work touches, empty if none
+   * @param work Work to run
+   * @throws RejectedExecutionException if the queue of the bulkhead is full
+   */
+  public <T> CompletableFuture<T> submit(String bulkhead,
+                                         TaskPriority priority,
+                                         long timestamp,
+                                         Collection<String> resources,
+                                         Supplier<T> work)
+  {
+    Bulkhead target = bulkheads.get(bulkhead);
+    if (target == null)
+      throw new IllegalArgumentException("Unknown bulkhead " + bulkhead);
+    return target.submit(priority, timestamp,
+                         () -> runLocked(resources, work));
+  }
+
+  public int getQueuedCount()
+  {
+    int queued = 0;
+    for (Bulkhead bulkhead : bulkheads.values())
+      queued += bulkhead.getQueuedCount();
+    return queued;
+  }
+
+  /**
+   * Runs work on the calling thread, holding the locks of its resources.
+   */
+  public <T> T runLocked(Collection<String> resources, Supplier<T> work)
+  {
+    Lock framework = resources.contains(FRAMEWORK) ?
+      frameworkLock.writeLock() : frameworkLock.readLock();
+    framework.lock();
+    try
+    {
+      if (resources.contains(FRAMEWORK))
+        return work.get();
+      TreeSet<Integer> held = new TreeSet<>();
+      for (String resource : resources)
+        held.add(stripe(resource));
+      for (int stripe : held)
+        stripes[stripe].lock();
+      try
+      {
+        return work.get();
+      }
+      finally
+      {
+        for (int stripe : held.descendingSet())
+          stripes[stripe].unlock();
+      }
+    }
+    finally
+    {
+      framework.unlock();
+    }
+  }
+
+  public void shutdown()
+  {
+    bulkheads.values().forEach(Bulkhead::shutdown);
+  }
+
+  private static int stripe(String resource)
+  {
+    int h = resource.hashCode();
+    return ((h ^ (h >>> 16)) & 0x7fffffff) % STRIPES;
+  }
+}
@@ -0,0 +1,339 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.task;
+
+import com.aicas.edp.client.common.task.BasicTaskResult;
+import com.aicas.edp.client.common.task.Task;
+import com.aicas.edp.client.common.task.TaskResult;
+import com.aicas.edp.client.common.task.TaskStatus;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Executes the tasks of a job as a dependency graph.
+ * Dependencies are either declared by task id or inferred: a task depends
+ * on every earlier task that touches one of its resources. Tasks whose
+ * dependencies have finished run in parallel, up to a bound. Results are
+ * returned in the order of the tasks.
+ */
+@Slf4j
+public class TaskGraph
+{
+  /**
+   * What happens to the remaining tasks when a task does not succeed.
+   */
+  public enum FailurePolicy
+  {
+    /**
+     * Start no further task.
+     */
+    STOP,
+    /**
+     * Skip the tasks that depend on the failed one, directly or indirectly.
+     */
+    SKIP_DEPENDENTS,
+    /**
+     * Run all tasks.
+     */
+    CONTINUE
+  }
+
+  private final List<Task> tasks;
+  private final List<Set<Integer>> dependents = new ArrayList<>();
+  private final int[] waitingFor;
+  private final FailurePolicy policy;
+  private final int parallelism;
+  private final Function<Task, CompletableFuture<TaskResult>> runner;
+  private final TaskResult[] results;
+  private final Deque<Integer> ready = new ArrayDeque<>();
+  private final CompletableFuture<List<TaskResult>> done =
+    new CompletableFuture<>();
+  private int running;
+  private int finished;
+  private boolean stopped;
+
+  /**
+   * @param tasks Tasks in job order
+   * @param dependsOn Ids of the tasks each task id depends on, null to infer
+   *                  dependencies from resources
+   * @param resources Resources a task touches
+   * @param policy Handling of failed tasks
+   * @param parallelism Maximum number of tasks running at the same time
+   * @param runner Runs a task
+   * @throws IllegalArgumentException if the dependencies are invalid
+   */
+  public TaskGraph(List<Task> tasks, Map<String, List<String>> dependsOn,
+                   Function<Task, Set<String>> resources,
+                   FailurePolicy policy, int parallelism,
+                   Function<Task, CompletableFuture<TaskResult>> runner)
+  {
+    this.tasks = tasks;
+    this.policy = policy == null ? FailurePolicy.SKIP_DEPENDENTS : policy;
+    this.parallelism = Math.max(1, parallelism);
+    this.runner = runner;
+    results = new TaskResult[tasks.size()];
+    waitingFor = new int[tasks.size()];
+    List<Set<Integer>> dependencies = dependsOn == null ?
+      inferDependencies(tasks, resources) :
+      declaredDependencies(tasks, dependsOn);
+    for (int i = 0; i < tasks.size(); i++)
+      dependents.add(new TreeSet<>());
+    for (int i = 0; i < tasks.size(); i++)
+    {
+      waitingFor[i] = dependencies.get(i).size();
+      for (int dependency : dependencies.get(i))
+        dependents.get(dependency).add(i);
+    }
+    checkAcyclic();
+  }
+
+  /**
+   * Checks declared dependencies without executing anything.
+   * @throws IllegalArgumentException if the dependencies are invalid
+   */
+  public static void checkDependencies(List<Task> tasks,
+                                       Map<String, List<String>> dependsOn)
+  {
+    if (dependsOn != null)
+    {
+      new TaskGraph(tasks, dependsOn, task -> Collections.emptySet(),
+                    FailurePolicy.CONTINUE, 1, task -> null);
+    }
+  }
+
+  /**
+   * @return Results in task order, once all tasks have finished or were
+   * skipped
+   */
+  public synchronized CompletableFuture<List<TaskResult>> execute()
+  {
+    for (int i = 0; i < tasks.size(); i++)
+    {
+      if (waitingFor[i] == 0)
+        ready.add(i);
+    }
+    completeIfDone();
+    dispatch();
+    return done;
+  }
+
+  private synchronized void dispatch()
+  {
+    while (!stopped && running < parallelism && !ready.isEmpty())
+    {
+      int index = ready.poll();
+      running++;
+      CompletableFuture<TaskResult> result;
+      try
+      {
+        result = runner.apply(tasks.get(index));
+      }
+      catch (Exception e)
+      {
+        result = new CompletableFuture<>();
+        result.completeExceptionally(e);
+      }
+      result.whenComplete((taskResult, throwable) -> onFinished(
+        index, taskResult != null ? taskResult :
+          failedResult(tasks.get(index), throwable)));
+    }
+  }
+
+  private synchronized void onFinished(int index, TaskResult taskResult)
+  {
+    running--;
+    record(index, taskResult);
+    boolean failed = taskResult.getStatus() != TaskStatus.SUCCEEDED;
+    if (failed && policy == FailurePolicy.STOP)
+    {
+      stopped = true;
+      for (int i = 0; i < tasks.size(); i++)
+      {
+        if (results[i] == null && !isRunning(i))
+          record(i, skippedResult(tasks.get(i), tasks.get(index)));
+      }
+    }
+    else if (failed && policy == FailurePolicy.SKIP_DEPENDENTS)
+    {
+      skipDependents(index, tasks.get(index));
+    }
+    else
+    {
+      release(index);
+    }
+    completeIfDone();
+    dispatch();
+  }
+
+  private void release(int index)
+  {
+    for (int dependent : dependents.get(index))
+    {
+      if (--waitingFor[dependent] == 0 && results[dependent] == null)
+        ready.add(dependent);
+    }
+  }
+
+  private void skipDependents(int index, Task failed)
+  {
+    for (int dependent : dependents.get(index))
+    {
+      if (results[dependent] == null)
+      {
+        record(dependent, skippedResult(tasks.get(dependent), failed));
+        skipDependents(dependent, failed);
+      }
+    }
+  }
+
+  private boolean isRunning(int index)
+  {
+    // Neither finished nor waiting: dispatched before the stop
+    return waitingFor[index] == 0 && !ready.contains(index);
+  }
+
+  private void record(int index, TaskResult taskResult)
+  {
+    if (results[index] == null)
+    {
+      results[index] = taskResult;
+      finished++;
+    }
+  }
+
+  private void completeIfDone()
+  {
+    if (finished == tasks.size() && running == 0)
+      done.complete(Collections.unmodifiableList(Arrays.asList(results)));
+  }
+
+  private void checkAcyclic()
+  {
+    int[] remaining = waitingFor.clone();
+    Deque<Integer> free = new ArrayDeque<>();
+    for (int i = 0; i < remaining.length; i++)
+    {
+      if (remaining[i] == 0)
+        free.add(i);
+    }
+    int visited = 0;
+    while (!free.isEmpty())
+    {
+      int index = free.poll();
+      visited++;
+      for (int dependent : dependents.get(index))
+      {
+        if (--remaining[dependent] == 0)
+          free.add(dependent);
+      }
+    }
+    if (visited < tasks.size())
+      throw new IllegalArgumentException("Task dependencies contain a cycle");
+  }
+
+  private static List<Set<Integer>> inferDependencies(
+    List<Task> tasks, Function<Task, Set<String>> resources)
+  {
+    List<Set<String>> touched = new ArrayList<>();
+    for (Task task : tasks)
+      touched.add(resources.apply(task));
+    List<Set<Integer>> dependencies = new ArrayList<>();
+    for (int i = 0; i < tasks.size(); i++)
+    {
+      Set<Integer> dependsOn = new TreeSet<>();
+      for (int j = 0; j < i; j++)
+      {
+        if (conflict(touched.get(i), touched.get(j)))
+          dependsOn.add(j);
+      }
+      dependencies.add(dependsOn);
+    }
+    return dependencies;
+  }
+
+  private static boolean conflict(Set<String> a, Set<String> b)
+  {
+    if (a.contains(TaskEngine.FRAMEWORK) && !b.isEmpty() ||
+        b.contains(TaskEngine.FRAMEWORK) && !a.isEmpty())
+      return true;
+    for (String resource : a)
+    {
+      if (b.contains(resource))
+        return true;
+    }
+    return false;
+  }
+
+  private static List<Set<Integer>> declaredDependencies(
+    List<Task> tasks, Map<String, List<String>> dependsOn)
+  {
+    Map<String, Integer> indexById = new HashMap<>();
+    for (int i = 0; i < tasks.size(); i++)
+    {
+      String id = tasks.get(i).getId();
+      if (id != null && indexById.put(id, i) != null)
+        throw new IllegalArgumentException("Duplicate task id " + id);
+    }
+    List<Set<Integer>> dependencies = new ArrayList<>();
+    for (Task task : tasks)
+    {
+      Set<Integer> indexes = new TreeSet<>();
+      List<String> ids =
+        task.getId() == null ? null : dependsOn.get(task.getId());
+      if (ids != null)
+      {
+        for (String id : ids)
+        {
+          Integer index = indexById.get(id);
+          if (index == null)
+            throw new IllegalArgumentException(
+              "Task " + task.getId() + " depends on unknown task " + id);
+          indexes.add(index);
+        }
+      }
+      dependencies.add(indexes);
+    }
+    for (String id : dependsOn.keySet())
+    {
+      if (!indexById.containsKey(id))
+        throw new IllegalArgumentException("Dependencies of unknown task " + id);
+    }
+    return dependencies;
+  }
+
+  private static TaskResult skippedResult(Task task, Task failed)
+  {
+    TaskResult taskResult = new BasicTaskResult();
+    taskResult.setTaskId(task.getId());
+    taskResult.setStatus(TaskStatus.CANCELLED);
+    taskResult.setMessage("Skipped, task " + failed.getId() + " failed");
+    taskResult.setFinished(LocalDateTime.now());
+    return taskResult;
+  }
+
+  private static TaskResult failedResult(Task task, Throwable throwable)
+  {
+    log.error("Task {} of job failed", task.getId(), throwable);
+    TaskResult taskResult = new BasicTaskResult();
+    taskResult.setTaskId(task.getId());
+    taskResult.setStatus(TaskStatus.FAILED);
+    taskResult.setMessage("Unexpected exception occurred during task execution");
+    taskResult.setFinished(LocalDateTime.now());
+    return taskResult;
+  }
+}
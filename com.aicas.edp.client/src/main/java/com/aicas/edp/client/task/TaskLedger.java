@@ -0,0 +1,200 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.task;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Durable record of processed task ids, so a task that is still in the
+ * desired shadow is not executed again after a restart.
+ * Ids are appended to a log file (one per line) and indexed in memory for
+ * constant time lookups. Only the most recent ids are retained, the log is
+ * compacted when it has grown to twice the retained number of ids.
+ */
+@Slf4j
+public class TaskLedger
+{
+  private final File file;
+  private final int maxEntries;
+  // Insertion ordered, the first id is the oldest
+  private final LinkedHashSet<String> index = new LinkedHashSet<>();
+  private FileOutputStream output;
+  private Writer writer;
+  private int logLines;
+
+  /**
+   * @param file Log file
+   * @param maxEntries Number of ids retained
+   */
+  public TaskLedger(File file, int maxEntries)
+  {
+    this.file = file;
+    this.maxEntries = Math.max(1, maxEntries);
+  }
+
+  /**
+   * Reads the ids recorded so far and opens the log for appending.
+   */
+  public synchronized void open()
+    throws
+    IOException
+  {
+    if (file.isFile())
+    {
+      try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+        Files.newInputStream(file.toPath()), StandardCharsets.UTF_8)))
+      {
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+          if (!line.isEmpty())
+          {
+            add(line);
+            logLines++;
+          }
+        }
+      }
+    }
+    openLog();
+    log.debug("Task ledger opened with {} processed tasks", index.size());
+    if (logLines >= 2 * maxEntries)
+      compact();
+  }
+
+  public synchronized void close()
+  {
+    closeLog();
+  }
+
+  public synchronized boolean contains(String taskId)
+  {
+    return index.contains(taskId);
+  }
+
+  /**
+   * Records a task as processed.
+   * @param taskId Task id
+   * @return false if the task was recorded before
+   */
+  public synchronized boolean record(String taskId)
+  {
+    if (index.contains(taskId))
+      return false;
+    add(taskId);
+    try
+    {
+      // Reopens a log a failed compaction left closed
+      if (writer == null)
+        openLog();
+      writer.write(taskId);
+      writer.write('\n');
+      writer.flush();
+      output.getFD().sync();
+      logLines++;
+      if (logLines >= 2 * maxEntries)
+        compact();
+    }
+    catch (IOException e)
+    {
+      log.error("Failed to record task {} in ledger", taskId, e);
+    }
+    return true;
+  }
+
+  public synchronized int size()
+  {
+    return index.size();
+  }
+
+  private void add(String taskId)
+  {
+    index.remove(taskId);
+    index.add(taskId);
+    if (index.size() > maxEntries)
+    {
+      Iterator<String> oldest = index.iterator();
+      oldest.next();
+      oldest.remove();
+    }
+  }
+
+  /**
+   * Rewrites the log with the retained ids only. The new log is synced
+   * before it replaces the old one, and the log is reopened whether or not
+   * the compaction succeeded.
+   */
+  private void compact()
+    throws
+    IOException
+  {
+    closeLog();
+    try
+    {
+      File tmp = new File(file.getPath() + ".tmp");
+      try (FileOutputStream tmpOutput = new FileOutputStream(tmp);
+           Writer out = new OutputStreamWriter(tmpOutput,
+                                               StandardCharsets.UTF_8))
+      {
+        for (String taskId : index)
+        {
+          out.write(taskId);
+          out.write('\n');
+        }
+        out.flush();
+        tmpOutput.getFD().sync();
+      }
+      Files.move(tmp.toPath(), file.toPath(),
+                 StandardCopyOption.REPLACE_EXISTING,
+                 StandardCopyOption.ATOMIC_MOVE);
+      logLines = index.size();
+      log.debug("Task ledger compacted to {} entries", logLines);
+    }
+    catch (IOException e)
+    {
+      log.error("Failed to compact task ledger, appending to the old log", e);
+    }
+    finally
+    {
+      openLog();
+    }
+  }
+
+  private void openLog()
+    throws
+    IOException
+  {
+    output = new FileOutputStream(file, true);
+    writer = new OutputStreamWriter(output, StandardCharsets.UTF_8);
+  }
+
+  private void closeLog()
+  {
+    if (writer == null)
+      return;
+    try
+    {
+      writer.close();
+    }
+    catch (IOException e)
+    {
+      log.warn("Failed to close task ledger", e);
+    }
+    writer = null;
+    output = null;
+  }
+}
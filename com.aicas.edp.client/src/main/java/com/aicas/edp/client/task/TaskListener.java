@@ -100,7 +100,7 @@ public class TaskListener extends AWSIotTopic
       String json = mapper.writeValueAsString(taskResult);
       AWSIotMessage awsIotMessage =
         new AWSIotMessage(prefix + "/task/response", AWSIotQos.QOS0, json);
-      context.getIotManager().publish(awsIotMessage);
+      context.getIotManager().publish(awsIotMessage, taskResult.getTaskId());
 
     }
     catch (AWSIotException e)
@@ -6,12 +6,17 @@ package com.aicas.edp.client.task;
 
 import com.aicas.edp.client.common.task.BasicTaskResult;
 import com.aicas.edp.client.common.task.BundleTask;
+import com.aicas.edp.client.common.task.ConfigTask;
 import com.aicas.edp.client.common.task.NewDeployTask;
+import com.aicas.edp.client.common.task.SensorTask;
 import com.aicas.edp.client.common.task.Task;
 import com.aicas.edp.client.common.task.TaskResult;
 import com.aicas.edp.client.common.task.TaskStatus;
 import com.aicas.edp.client.task.handler.BundleTaskHandler;
+import com.aicas.edp.client.task.handler.CoalescingTaskHandler;
+import com.aicas.edp.client.task.handler.ConfigTaskHandler;
 import com.aicas.edp.client.task.handler.DeployTaskHandler;
+import com.aicas.edp.client.task.handler.SensorTaskHandler;
 import com.aicas.edp.client.task.handler.TaskHandler;
 import com.aicas.edp.client.util.Context;
 import com.aicas.edp.client.util.Manager;
@@ -20,22 +25,38 @@ import com.amazonaws.services.iot.client.AWSIotTopic;
 import lombok.extern.slf4j.Slf4j;
 
 import java.time.LocalDateTime;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
-import java.util.stream.Collectors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Slf4j
 public class TaskManager implements Manager
 {
+  private static final String DEFAULT_BULKHEAD = "default";
+  private static final String QUEUE_FULL = "Too many queued tasks";
   private final Map<Class<? extends Task>, TaskHandler> handlerMap =
     new HashMap<>();
+  // Bulkhead of each task type, tasks of unknown types use the default one
+  private final Map<Class<? extends Task>, String> bulkheadMap =
+    new HashMap<>();
   private final Context context;
-  private final ExecutorService executor =
-    Executors.newSingleThreadScheduledExecutor();
+  private TaskEngine engine;
+  private TaskCoalescer coalescer;
+  private ScheduledExecutorService deadlines;
+  // Cancellation tokens of queued and running tasks by task id
+  private final Map<String, CancellationToken> tokens =
+    new ConcurrentHashMap<>();
   private AWSIotTopic taskListener;
 
   public TaskManager(Context context)
@@ -47,9 +68,29 @@ public class TaskManager implements Manager
   @Override
   public void initialize()
   {
-    handlerMap.put(BundleTask.class, new BundleTaskHandler(context));
-    handlerMap.put(NewDeployTask.class, new DeployTaskHandler(context));
-    //handlerMap.put(ConfigTask.class, new ConfigTaskHandler(bndCtx, ctx));
+    engine = new TaskEngine(context.getConfiguration().getTaskAgingMs());
+    engine.addBulkhead(DEFAULT_BULKHEAD, 1,
+                       context.getConfiguration()
+                         .getTaskQueueSize(DEFAULT_BULKHEAD));
+    register(BundleTask.class, "bundle", new BundleTaskHandler(context));
+    register(NewDeployTask.class, "deploy", new DeployTaskHandler(context));
+    register(SensorTask.class, "sensor", new SensorTaskHandler(context));
+    if (isConfigurationAdminAvailable())
+      register(ConfigTask.class, "config",
+               new ConfigTaskHandler(context.getBundleContext(), context));
+    else
+      log.info("ConfigurationAdmin API not available, config tasks are " +
+               "not supported");
+    addBulkheads();
+    coalescer = new TaskCoalescer(
+      context.getConfiguration().getTaskCoalesceWindowMs());
+    deadlines = Executors.newSingleThreadScheduledExecutor(
+      r -> new Thread(r, "edp-task-deadlines"));
+    long metricsIntervalMs =
+      context.getConfiguration().getMetricsLogIntervalMs();
+    if (metricsIntervalMs > 0)
+      deadlines.scheduleAtFixedRate(this::logMetrics, metricsIntervalMs,
+                                    metricsIntervalMs, TimeUnit.MILLISECONDS);
   }
 
   @Override
@@ -66,13 +107,32 @@ public class TaskManager implements Manager
     throws
     AWSIotException
   {
-    context.getIotManager().unsubscribe(taskListener);
+    if (taskListener != null)
+      context.getIotManager().unsubscribe(taskListener);
+    taskListener = null;
   }
 
   @Override
   public void shutdown()
   {
-    executor.shutdownNow();
+    handlerMap.values().forEach(TaskHandler::shutdown);
+    if (engine != null)
+      engine.shutdown();
+    if (deadlines != null)
+      deadlines.shutdownNow();
+  }
+
+  /**
+   * @return Bulkheads by name, for saturation metrics
+   */
+  public Map<String, Bulkhead> getBulkheads()
+  {
+    return engine.getBulkheads();
+  }
+
+  public TaskCoalescer getCoalescer()
+  {
+    return coalescer;
   }
 
   public boolean isValid(Task task)
@@ -88,51 +148,282 @@ public class TaskManager implements Manager
     }
   }
 
+  /**
+   * Queues a task on the bulkhead of its type, by priority and timestamp.
+   * It runs concurrently with tasks that touch other resources, and is
+   * {@link TaskStatus#REJECTED} if the queue of the bulkhead is full.
+   * Identical read-only tasks share one execution, see
+   * {@link CoalescingTaskHandler#getCoalescingKey(Task)}.
+   */
   public CompletableFuture<TaskResult> executeAsync(Task task)
   {
-    return CompletableFuture.supplyAsync(() -> execute(task), executor);
+    CancellationToken token = new CancellationToken();
+    String taskId = task.getId();
+    if (taskId != null)
+      tokens.put(taskId, token);
+    String key = getCoalescingKey(task);
+    CompletableFuture<TaskResult> result;
+    if (key == null)
+    {
+      result = submit(task, token);
+    }
+    else
+    {
+      CoalescingTaskHandler taskHandler =
+        (CoalescingTaskHandler) handlerMap.get(task.getClass());
+      result = coalescer.execute(key, task, token, taskHandler::copyResult,
+                                 shared -> submit(task, shared));
+    }
+    return result.whenComplete((taskResult, throwable) -> {
+      if (taskId != null)
+        tokens.remove(taskId, token);
+    });
+  }
+
+  private CompletableFuture<TaskResult> submit(Task task,
+                                               CancellationToken token)
+  {
+    String taskId = task.getId();
+    CompletableFuture<TaskResult> result = new CompletableFuture<>();
+    // Claimed either by the worker starting the task or by a cancellation
+    // while it is queued, a running task reports its handler's result
+    AtomicBoolean claimed = new AtomicBoolean();
+    token.onCancel(() -> {
+      if (claimed.compareAndSet(false, true))
+        result.complete(createCancelledResult(task, token.getReason()));
+    });
+    CompletableFuture<TaskResult> queued;
+    try
+    {
+      queued = engine.submit(getBulkhead(task), getPriority(task),
+                             timestamp(task), getResources(task), () -> {
+        if (!claimed.compareAndSet(false, true))
+          return createCancelledResult(task, token.getReason());
+        return execute(task, token);
+      });
+    }
+    catch (RejectedExecutionException e)
+    {
+      log.warn("Rejected task {}: {}", taskId, e.getMessage());
+      TaskResult rejected = createTaskResult(TaskStatus.REJECTED, QUEUE_FULL);
+      rejected.setTaskId(taskId);
+      rejected.setFinished(LocalDateTime.now());
+      result.complete(rejected);
+      return result;
+    }
+    queued.whenComplete((taskResult, throwable) -> {
+      if (throwable != null)
+        result.completeExceptionally(throwable);
+      else
+        result.complete(taskResult);
+    });
+    return result;
+  }
+
+  /**
+   * @return true if the task was rejected without running because the queue
+   * of its bulkhead was full, it may succeed later
+   */
+  public static boolean isQueueFull(TaskResult taskResult)
+  {
+    return taskResult != null &&
+           taskResult.getStatus() == TaskStatus.REJECTED &&
+           QUEUE_FULL.equals(taskResult.getMessage());
+  }
+
+  /**
+   * Cancels a queued or running task. A queued task reports
+   * {@link TaskStatus#CANCELLED} right away, a running one once its handler
+   * has returned, and only if the handler stopped.
+   * @return false if the task is not known or done already
+   */
+  public boolean cancel(String taskId)
+  {
+    CancellationToken token = tokens.get(taskId);
+    return token != null && token.cancel(TaskStatus.CANCELLED);
+  }
+
+  /**
+   * Executes the tasks of a job as a dependency graph, independent tasks
+   * run in parallel. Each task is queued on its own with its priority and
+   * resources.
+   * @param tasks List of tasks to execute
+   * @param dependsOn Ids of the tasks each task id depends on, null to infer
+   *                  the dependencies from the resources of the tasks
+   * @param policy Handling of failed tasks, null to skip their dependents
+   * @return Results in the order of the tasks
+   */
+  public CompletableFuture<List<TaskResult>> executeAsync(
+    List<Task> tasks, Map<String, List<String>> dependsOn,
+    TaskGraph.FailurePolicy policy)
+  {
+    try
+    {
+      return new TaskGraph(tasks, dependsOn, this::getResources, policy,
+                           context.getConfiguration().getJobParallelism(),
+                           this::executeAsync).execute();
+    }
+    catch (IllegalArgumentException e)
+    {
+      CompletableFuture<List<TaskResult>> failed = new CompletableFuture<>();
+      failed.completeExceptionally(e);
+      return failed;
+    }
+  }
+
+  private void logMetrics()
+  {
+    for (Bulkhead bulkhead : engine.getBulkheads().values())
+    {
+      log.info("Bulkhead {}: active={}/{}, queued={}/{}, peakQueued={}, " +
+               "accepted={}, rejected={}, completed={}, saturation={}",
+               bulkhead.getName(), bulkhead.getActiveCount(),
+               bulkhead.getWorkerCount(), bulkhead.getQueuedCount(),
+               bulkhead.getQueueCapacity(), bulkhead.getPeakQueuedCount(),
+               bulkhead.getAcceptedCount(), bulkhead.getRejectedCount(),
+               bulkhead.getCompletedCount(),
+               String.format("%.2f", bulkhead.getSaturation()));
+    }
+    log.info("Task coalescing: executions={}, coalesced={}",
+             coalescer.getExecutionCount(), coalescer.getCoalescedCount());
+  }
+
+  private void register(Class<? extends Task> taskClass, String bulkhead,
+                        TaskHandler taskHandler)
+  {
+    handlerMap.put(taskClass, taskHandler);
+    bulkheadMap.put(taskClass, bulkhead);
+  }
+
+  /**
+   * Creates the bulkheads of the registered handlers, they share the
+   * configured task workers.
+   */
+  private void addBulkheads()
+  {
+    Set<String> bulkheads = new LinkedHashSet<>(bulkheadMap.values());
+    for (String bulkhead : bulkheads)
+    {
+      engine.addBulkhead(bulkhead,
+                         context.getConfiguration()
+                           .getTaskWorkers(bulkhead, bulkheads.size()),
+                         context.getConfiguration().getTaskQueueSize(bulkhead));
+    }
   }
 
   /**
-   * This method runs list of {@code @Task} as 1 Task in Task executor
-   * Used to execute Job tasks sequentially without interruption via Web Portal actions.
-   * @param tasks List of tasks to execute sequentially
-   * @return CompletableFuture from executor
+   * The ConfigurationAdmin package is imported optionally.
    */
-  public CompletableFuture<List<TaskResult>> executeAsync(List<Task> tasks)
+  private static boolean isConfigurationAdminAvailable()
+  {
+    try
+    {
+      Class.forName("org.osgi.service.cm.ConfigurationAdmin", false,
+                    TaskManager.class.getClassLoader());
+      return true;
+    }
+    catch (ClassNotFoundException | LinkageError e)
+    {
+      return false;
+    }
+  }
+
+  private String getBulkhead(Task task)
+  {
+    return bulkheadMap.getOrDefault(task.getClass(), DEFAULT_BULKHEAD);
+  }
+
+  private String getCoalescingKey(Task task)
+  {
+    TaskHandler taskHandler = handlerMap.get(task.getClass());
+    if (!(taskHandler instanceof CoalescingTaskHandler))
+      return null;
+    try
+    {
+      return ((CoalescingTaskHandler) taskHandler).getCoalescingKey(task);
+    }
+    catch (Exception e)
+    {
+      log.warn("Failed to determine coalescing key of task {}", task.getId(),
+               e);
+      return null;
+    }
+  }
+
+  private TaskPriority getPriority(Task task)
+  {
+    TaskHandler taskHandler = handlerMap.get(task.getClass());
+    if (taskHandler == null)
+      return TaskPriority.CONTROL;
+    try
+    {
+      return taskHandler.getPriority(task);
+    }
+    catch (Exception e)
+    {
+      log.warn("Failed to determine priority of task {}", task.getId(), e);
+      return TaskPriority.CONTROL;
+    }
+  }
+
+  private static long timestamp(Task task)
   {
-    return CompletableFuture.supplyAsync(() -> execute(tasks), executor);
+    return task.getTimestamp() == null ? 0 : task.getTimestamp();
   }
 
-  private List<TaskResult> execute(List<Task> tasks)
+  /**
+   * @return Resources the task touches, the whole framework if the handler
+   * cannot tell
+   */
+  private Set<String> getResources(Task task)
   {
-    return tasks.stream()
-      .sequential()
-      .map(this::execute)
-      .collect(Collectors.toList());
+    TaskHandler taskHandler = handlerMap.get(task.getClass());
+    if (taskHandler == null)
+      return Collections.emptySet();
+    try
+    {
+      return taskHandler.getResources(task);
+    }
+    catch (Exception e)
+    {
+      log.warn("Failed to determine resources of task {}", task.getId(), e);
+      return Collections.singleton(TaskEngine.FRAMEWORK);
+    }
   }
 
   /**
    * The main method to execute tasks, this method should always return a TaskResult
    * and throw no exceptions
+   * A task whose handler stops on a cancellation or its deadline reports
+   * {@link TaskStatus#CANCELLED} or {@link TaskStatus#TIMED_OUT}, a handler
+   * that completes anyway reports its own result.
    * @param task Task to execute
+   * @param token Cancellation of the task
    * @return Result of Task execution
    */
-  private TaskResult execute(Task task)
+  private TaskResult execute(Task task, CancellationToken token)
   {
+    if (token.isCancelled())
+      return createCancelledResult(task, token.getReason());
     TaskHandler taskHandler = handlerMap.get(task.getClass());
     LocalDateTime started = LocalDateTime.now();
+    ScheduledFuture<?> deadline = scheduleDeadline(task, token);
+    token.setExecutor(Thread.currentThread());
 
     TaskResult taskResult;
+    boolean aborted = false;
     if (taskHandler != null)
     {
       try
       {
-        taskResult = handlerMap.get(task.getClass()).execute(task);
+        taskResult = handlerMap.get(task.getClass()).execute(task, token);
       }
       catch (Exception e)
       {
-        log.error("Unexpected error during task execution. {}", task, e);
+        // E.g. the interrupt or the closed connection of a cancellation
+        aborted = token.isCancelled();
+        if (!aborted)
+          log.error("Unexpected error during task execution. {}", task, e);
         taskResult = createTaskResult(TaskStatus.FAILED,
                                       "Unexpected error. task: " + task);
       }
@@ -142,11 +433,68 @@ public class TaskManager implements Manager
       taskResult = createTaskResult(TaskStatus.REJECTED,
                                     "Unsupported task type: " + task.getType());
     }
+    token.setExecutor(null);
+    // Results of read-only tasks may be outdated by this one
+    if (taskHandler != null && getCoalescingKey(task) == null)
+      coalescer.invalidate();
+    // Clear an interrupt of a cancellation that came too late
+    Thread.interrupted();
+    if (deadline != null)
+      deadline.cancel(false);
+    if (token.isCancelled() && (aborted || isStopped(taskResult)))
+    {
+      taskResult.setStatus(token.getReason());
+      taskResult.setMessage(cancelledMessage(token.getReason()));
+    }
+    else if (token.isCancelled())
+    {
+      log.info("Task {} finished before its cancellation took effect: {}",
+               task.getId(), taskResult.getStatus());
+    }
     taskResult.setStarted(started);
     taskResult.setFinished(LocalDateTime.now());
     return taskResult;
   }
 
+  /**
+   * @return true if the result tells that the handler stopped on a
+   * cancellation, it reports the cancellation or its failure
+   */
+  private static boolean isStopped(TaskResult taskResult)
+  {
+    TaskStatus status = taskResult.getStatus();
+    return status == TaskStatus.CANCELLED || status == TaskStatus.TIMED_OUT ||
+           status == TaskStatus.FAILED;
+  }
+
+  private ScheduledFuture<?> scheduleDeadline(Task task,
+                                              CancellationToken token)
+  {
+    long timeoutMs =
+      context.getConfiguration().getTaskTimeoutMs(task.getType());
+    if (timeoutMs <= 0)
+      return null;
+    return deadlines.schedule(() -> {
+      if (token.cancel(TaskStatus.TIMED_OUT))
+        log.warn("Task {} exceeded its deadline of {} ms", task.getId(),
+                 timeoutMs);
+    }, timeoutMs, TimeUnit.MILLISECONDS);
+  }
+
+  private TaskResult createCancelledResult(Task task, TaskStatus reason)
+  {
+    TaskResult taskResult = createTaskResult(reason, cancelledMessage(reason));
+    taskResult.setTaskId(task.getId());
+    taskResult.setFinished(LocalDateTime.now());
+    return taskResult;
+  }
+
+  static String cancelledMessage(TaskStatus reason)
+  {
+    return reason == TaskStatus.TIMED_OUT ? "Task exceeded its deadline" :
+      "Task cancelled";
+  }
+
   private TaskResult createTaskResult(TaskStatus status, String message)
   {
     TaskResult taskResult = new BasicTaskResult();
@@ -0,0 +1,24 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.task;
+
+/**
+ * Scheduling class of a task, in the order tasks are picked.
+ */
+public enum TaskPriority
+{
+  /**
+   * Queries an operator is waiting for, e.g. listing bundles.
+   */
+  INTERACTIVE,
+  /**
+   * Short state changes, e.g. starting or stopping a bundle.
+   */
+  CONTROL,
+  /**
+   * Long running work, e.g. deployments.
+   */
+  BULK
+}
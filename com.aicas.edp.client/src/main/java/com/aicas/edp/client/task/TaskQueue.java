@@ -0,0 +1,93 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.task;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Queue of waiting tasks, ordered by priority class and then by task
+ * timestamp.
+ * Waiting tasks age: every aging interval spent in the queue moves a task
+ * up by one class, so bulk work is not starved by a steady stream of more
+ * urgent tasks.
+ */
+public class TaskQueue<T>
+{
+  private final long agingMs;
+  private final PriorityQueue<Entry<T>>[] classes;
+  private long sequence;
+
+  /**
+   * @param agingMs Waiting time that raises a task by one class
+   */
+  @SuppressWarnings("unchecked")
+  public TaskQueue(long agingMs)
+  {
+    this.agingMs = Math.max(1, agingMs);
+    classes = new PriorityQueue[TaskPriority.values().length];
+    Comparator<Entry<T>> order = Comparator.<Entry<T>>comparingLong(
+      entry -> entry.timestamp).thenComparingLong(entry -> entry.sequence);
+    for (int i = 0; i < classes.length; i++)
+      classes[i] = new PriorityQueue<>(order);
+  }
+
+  /**
+   * @param timestamp Creation time of the task, orders tasks of a class
+   */
+  public synchronized void add(TaskPriority priority, long timestamp, T task)
+  {
+    classes[priority.ordinal()].add(
+      new Entry<>(task, timestamp, System.currentTimeMillis(), sequence++));
+  }
+
+  /**
+   * @return Most urgent task, taking aging into account, null if empty
+   */
+  public synchronized T poll()
+  {
+    long now = System.currentTimeMillis();
+    PriorityQueue<Entry<T>> best = null;
+    long bestRank = Long.MAX_VALUE;
+    for (int i = 0; i < classes.length; i++)
+    {
+      Entry<T> head = classes[i].peek();
+      if (head == null)
+        continue;
+      long rank = Math.max(0, i - (now - head.enqueued) / agingMs);
+      if (best == null || rank < bestRank ||
+          (rank == bestRank && head.timestamp < best.peek().timestamp))
+      {
+        best = classes[i];
+        bestRank = rank;
+      }
+    }
+    return best == null ? null : best.poll().task;
+  }
+
+  public synchronized int size()
+  {
+    int size = 0;
+    for (PriorityQueue<Entry<T>> queue : classes)
+      size += queue.size();
+    return size;
+  }
+
+  private static class Entry<T>
+  {
+    final T task;
+    final long timestamp;
+    final long enqueued;
+    final long sequence;
+
+    Entry(T task, long timestamp, long enqueued, long sequence)
+    {
+      this.task = task;
+      this.timestamp = timestamp;
+      this.enqueued = enqueued;
+      this.sequence = sequence;
+    }
+  }
+}
@@ -11,20 +11,24 @@ import com.aicas.edp.client.common.task.BundleTaskResult;
 import com.aicas.edp.client.common.task.Task;
 import com.aicas.edp.client.common.task.TaskResult;
 import com.aicas.edp.client.common.task.TaskStatus;
+import com.aicas.edp.client.task.TaskEngine;
+import com.aicas.edp.client.task.TaskPriority;
 import com.aicas.edp.client.util.Context;
 import lombok.extern.slf4j.Slf4j;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleException;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import static com.aicas.edp.client.common.bundle.BundleState.ACTIVE;
 import static com.aicas.edp.client.common.bundle.BundleState.INSTALLED;
 import static com.aicas.edp.client.common.bundle.BundleState.RESOLVED;
 
 @Slf4j
-public class BundleTaskHandler implements TaskHandler
+public class BundleTaskHandler implements CoalescingTaskHandler
 {
   private final Context context;
 
@@ -58,6 +62,60 @@ public class BundleTaskHandler implements TaskHandler
     return true;
   }
 
+  /**
+   * Listing touches no bundle, the other actions the targeted bundle.
+   */
+  @Override
+  public Set<String> getResources(Task task)
+  {
+    BundleTask bundleTask = (BundleTask) task;
+    if (bundleTask.getAction() == BundleAction.LIST)
+      return Collections.emptySet();
+    if (bundleTask.getSymbolicName() == null)
+      return Collections.singleton(TaskEngine.FRAMEWORK);
+    return Collections.singleton(
+      TaskEngine.bundle(bundleTask.getSymbolicName()));
+  }
+
+  /**
+   * Listing is a query an operator waits for.
+   */
+  @Override
+  public TaskPriority getPriority(Task task)
+  {
+    return ((BundleTask) task).getAction() == BundleAction.LIST ?
+      TaskPriority.INTERACTIVE : TaskPriority.CONTROL;
+  }
+
+  /**
+   * Listing reads the bundles only, its result depends on the targeted
+   * bundle being found.
+   */
+  @Override
+  public String getCoalescingKey(Task task)
+  {
+    BundleTask bundleTask = (BundleTask) task;
+    if (bundleTask.getAction() != BundleAction.LIST)
+      return null;
+    return "bundle-list:" + bundleTask.getSymbolicName() + ":" +
+           bundleTask.getVersion();
+  }
+
+  @Override
+  public TaskResult copyResult(TaskResult result)
+  {
+    BundleTaskResult source = (BundleTaskResult) result;
+    BundleTaskResult copy = new BundleTaskResult();
+    copy.setTaskId(source.getTaskId());
+    copy.setStatus(source.getStatus());
+    copy.setMessage(source.getMessage());
+    copy.setStarted(source.getStarted());
+    copy.setFinished(source.getFinished());
+    if (source.getBundles() != null)
+      copy.setBundles(new ArrayList<>(source.getBundles()));
+    return copy;
+  }
+
   @Override
   // TODO Check for Bundle version also
   public TaskResult execute(Task task)
@@ -0,0 +1,25 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.task.handler;
+
+import com.aicas.edp.client.common.task.Task;
+import com.aicas.edp.client.common.task.TaskResult;
+
+/**
+ * Handler of read-only tasks, identical tasks may share one execution.
+ */
+public interface CoalescingTaskHandler extends TaskHandler
+{
+  /**
+   * Key of a read-only task, tasks with equal keys may share one execution.
+   * @return null if the task always executes
+   */
+  String getCoalescingKey(Task task);
+
+  /**
+   * Copies a successful result of a shared execution for one of its tasks.
+   */
+  TaskResult copyResult(TaskResult result);
+}
@@ -9,15 +9,47 @@ import com.aicas.edp.client.common.task.ConfigTaskResult;
 import com.aicas.edp.client.common.task.Task;
 import com.aicas.edp.client.common.task.TaskResult;
 import com.aicas.edp.client.common.task.TaskStatus;
+import com.aicas.edp.client.task.TaskEngine;
 import com.aicas.edp.client.util.Context;
 import lombok.extern.slf4j.Slf4j;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.cm.Configuration;
+import org.osgi.service.cm.ConfigurationAdmin;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Dictionary;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Applies configuration properties through ConfigurationAdmin.
+ * Every update restarts the managed service, so a configuration is only
+ * updated if a requested property differs from its current value. A
+ * property requested with a null value is removed.
+ * Config tasks arriving while a pass is running, e.g. the tasks of one job,
+ * are applied together in the next pass: ConfigurationAdmin is looked up
+ * and the current configurations are listed once per pass.
+ */
 @Slf4j
 public class ConfigTaskHandler implements TaskHandler
 {
+  private static final String CONFIG_PREFIX = "config:";
   private final BundleContext bndCtx;
   private final Context ctx;
+  private final Object passLock = new Object();
+  // Tasks waiting for the next pass
+  private final List<Pending> pending = new ArrayList<>();
 
   public ConfigTaskHandler(BundleContext bndCtx, Context ctx)
   {
@@ -54,71 +86,259 @@ public class ConfigTaskHandler implements TaskHandler
     return true;
   }
 
+  /**
+   * A configuration touches its PID and the bundle it belongs to.
+   */
   @Override
-  public TaskResult execute(Task task)
+  public Set<String> getResources(Task task)
   {
-    ConfigTaskResult result = new ConfigTaskResult();
-    result.setTaskId(task.getId());
+    ConfigTask configTask = (ConfigTask) task;
+    Set<String> resources = new HashSet<>();
+    resources.add(CONFIG_PREFIX + configTask.getPid());
+    Bundle bundle = configTask.getBundleId() == null ? null :
+      bndCtx.getBundle(configTask.getBundleId());
+    if (bundle != null && bundle.getSymbolicName() != null)
+      resources.add(TaskEngine.bundle(bundle.getSymbolicName()));
+    return resources;
+  }
 
+  @Override
+  public TaskResult execute(Task task)
+  {
     if (!(task instanceof ConfigTask))
     {
       log.error("{} is not instance of ConfigTask", task.getClass());
+      ConfigTaskResult result = new ConfigTaskResult();
+      result.setTaskId(task.getId());
       result.setStatus(TaskStatus.REJECTED);
       result.setMessage("Type mismatch, report to system administrator.");
       return result;
     }
+    Pending own = new Pending((ConfigTask) task);
+    synchronized (pending)
+    {
+      pending.add(own);
+    }
+    synchronized (passLock)
+    {
+      // A pass of another task may have applied this one already
+      if (own.result == null)
+        runPass();
+    }
+    return own.result;
+  }
 
-        /*ConfigurationAdmin configurationAdmin = agent.configurationAdmin;
-        if (configurationAdmin == null) {
-            result.setStatus(TaskStatus.REJECTED);
-            result.setMessage("No instance of ConfigurationAdmin present");
-            return result;
-        }
+  private void runPass()
+  {
+    List<Pending> batch;
+    synchronized (pending)
+    {
+      batch = new ArrayList<>(pending);
+      pending.clear();
+    }
+    ServiceReference<ConfigurationAdmin> reference =
+      bndCtx.getServiceReference(ConfigurationAdmin.class);
+    ConfigurationAdmin configurationAdmin =
+      reference == null ? null : bndCtx.getService(reference);
+    if (configurationAdmin == null)
+    {
+      for (Pending p : batch)
+        p.result = createResult(p.task, TaskStatus.REJECTED,
+                                "No instance of ConfigurationAdmin present");
+      return;
+    }
+    try
+    {
+      Map<String, Configuration> current =
+        listConfigurations(configurationAdmin, batch);
+      for (Pending p : batch)
+        p.result = apply(configurationAdmin, current, p.task);
+      log.debug("Applied {} config tasks in one pass", batch.size());
+    }
+    finally
+    {
+      bndCtx.ungetService(reference);
+    }
+  }
 
-        ConfigTask configTask = (ConfigTask) task;
-        String location = "?";
+  /**
+   * @return Existing configurations of the PIDs of the batch by PID
+   */
+  private Map<String, Configuration> listConfigurations(
+    ConfigurationAdmin configurationAdmin, List<Pending> batch)
+  {
+    Map<String, Configuration> current = new HashMap<>();
+    StringBuilder filter = new StringBuilder("(|");
+    for (Pending p : batch)
+    {
+      filter.append('(').append(Constants.SERVICE_PID).append('=')
+        .append(escape(p.task.getPid())).append(')');
+    }
+    filter.append(')');
+    try
+    {
+      Configuration[] configurations =
+        configurationAdmin.listConfigurations(filter.toString());
+      if (configurations != null)
+      {
+        for (Configuration configuration : configurations)
+          current.put(configuration.getPid(), configuration);
+      }
+    }
+    catch (Exception e)
+    {
+      log.warn("Failed to list configurations, looking them up one by one",
+               e);
+    }
+    return current;
+  }
 
-        Integer bundleId = configTask.getBundleId();
-        if (bundleId != null) {
-            Bundle bundle = agent.bundleContext.getBundle(bundleId);
-            if (bundle != null) location = bundle.getLocation();
-        } else {
-            String loc = configTask.getLocation();
-            if (loc != null && !loc.isEmpty()) location = loc;
-        }
-        if (configTask.getPid().isEmpty()) {
-            result.setStatus(TaskStatus.REJECTED);
-            result.setMessage("pid is empty");
-            return result;
+  private TaskResult apply(ConfigurationAdmin configurationAdmin,
+                           Map<String, Configuration> current,
+                           ConfigTask task)
+  {
+    try
+    {
+      Configuration configuration = current.get(task.getPid());
+      if (configuration == null)
+      {
+        configuration =
+          configurationAdmin.getConfiguration(task.getPid(), location(task));
+        current.put(task.getPid(), configuration);
+      }
+      Dictionary properties = configuration.getProperties();
+      Set<String> changed = diff(properties, task.getProperties());
+      String message;
+      if (changed.isEmpty())
+      {
+        message = "Configuration unchanged";
+      }
+      else
+      {
+        Hashtable<String, Object> updated = toHashtable(properties);
+        for (Map.Entry<String, Object> property :
+          task.getProperties().entrySet())
+        {
+          // A null value removes the property, Hashtable has no null values
+          if (property.getValue() == null)
+            updated.remove(property.getKey());
+          else
+            updated.put(property.getKey(), property.getValue());
         }
-        try {
-            if (configTask.getProperties() != null && !configTask.getProperties().isEmpty()) {
-                Configuration configuration = configurationAdmin.getConfiguration(configTask.getPid(), location);
-                Dictionary<String, Object> props = configuration.getProperties();
-                if (props == null) props = new Hashtable<>();
-                for (String key : configTask.getProperties().keySet()) {
-                    props.put(key, configTask.getProperties().get(key));
-                }
-                configuration.update(props);
-            }
-            Dictionary<String, Object> dictionary = configurationAdmin.getConfiguration(configTask.getPid(), location).getProperties();
-            Hashtable<String, Object> hashtable = new Hashtable<>();
-
-            if (dictionary != null) {
-                Enumeration<String> enumeration = dictionary.keys();
-                while (enumeration.hasMoreElements()) {
-                    String key = enumeration.nextElement();
-                    hashtable.put(key, dictionary.get(key));
-                }
-            }
-
-            result.setProperties(hashtable);
-        } catch (Exception e) {
-            log.error("config task execution failed", e);
-        }*/
-
-    result.setStatus(TaskStatus.REJECTED);
-    result.setMessage("Not implemented");
+        configuration.update(updated);
+        message = "Updated " + String.join(", ", changed);
+        log.info("Updated configuration {}: {}", task.getPid(), changed);
+      }
+      ConfigTaskResult result =
+        createResult(task, TaskStatus.SUCCEEDED, message);
+      result.setProperties(toHashtable(configuration.getProperties()));
+      return result;
+    }
+    catch (Exception e)
+    {
+      log.error("Config task execution failed for {}", task.getPid(), e);
+      return createResult(task, TaskStatus.FAILED, e.getMessage());
+    }
+  }
+
+  /**
+   * @return Keys of the requested properties that differ from the current
+   * ones, a requested null value differs from any present value
+   */
+  private static Set<String> diff(Dictionary properties,
+                                  Map<String, Object> requested)
+  {
+    Set<String> changed = new TreeSet<>();
+    if (requested == null)
+      return changed;
+    for (Map.Entry<String, Object> property : requested.entrySet())
+    {
+      Object value = properties == null ? null :
+        properties.get(property.getKey());
+      if (!sameValue(value, property.getValue()))
+        changed.add(property.getKey());
+    }
+    return changed;
+  }
+
+  /**
+   * Numbers are compared by value, JSON does not tell an Integer from a
+   * Long.
+   */
+  private static boolean sameValue(Object a, Object b)
+  {
+    if (a instanceof Number && b instanceof Number)
+    {
+      try
+      {
+        return new BigDecimal(a.toString())
+                 .compareTo(new BigDecimal(b.toString())) == 0;
+      }
+      catch (NumberFormatException e)
+      {
+        return a.equals(b);
+      }
+    }
+    return Objects.deepEquals(a, b);
+  }
+
+  private String location(ConfigTask task)
+  {
+    if (task.getBundleId() != null)
+    {
+      Bundle bundle = bndCtx.getBundle(task.getBundleId());
+      if (bundle != null)
+        return bundle.getLocation();
+    }
+    return task.getLocation();
+  }
+
+  private static Hashtable<String, Object> toHashtable(Dictionary dictionary)
+  {
+    Hashtable<String, Object> hashtable = new Hashtable<>();
+    if (dictionary != null)
+    {
+      Enumeration keys = dictionary.keys();
+      while (keys.hasMoreElements())
+      {
+        Object key = keys.nextElement();
+        hashtable.put(key.toString(), dictionary.get(key));
+      }
+    }
+    return hashtable;
+  }
+
+  private static String escape(String value)
+  {
+    StringBuilder escaped = new StringBuilder();
+    for (char c : value.toCharArray())
+    {
+      if (c == '\\' || c == '(' || c == ')' || c == '*')
+        escaped.append('\\');
+      escaped.append(c);
+    }
+    return escaped.toString();
+  }
+
+  private static ConfigTaskResult createResult(ConfigTask task,
+                                               TaskStatus status,
+                                               String message)
+  {
+    ConfigTaskResult result = new ConfigTaskResult();
+    result.setTaskId(task.getId());
+    result.setStatus(status);
+    result.setMessage(message);
     return result;
   }
+
+  private static class Pending
+  {
+    final ConfigTask task;
+    TaskResult result;
+
+    Pending(ConfigTask task)
+    {
+      this.task = task;
+    }
+  }
 }
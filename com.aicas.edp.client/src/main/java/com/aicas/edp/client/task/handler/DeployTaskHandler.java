@@ -13,6 +13,9 @@ import com.aicas.edp.client.common.task.NewDeployTask;
 import com.aicas.edp.client.common.task.Task;
 import com.aicas.edp.client.common.task.TaskResult;
 import com.aicas.edp.client.common.task.TaskStatus;
+import com.aicas.edp.client.task.CancellationToken;
+import com.aicas.edp.client.task.TaskEngine;
+import com.aicas.edp.client.task.TaskPriority;
 import com.aicas.edp.client.util.Context;
 import com.aicas.edp.client.util.JamaicaVmInfo;
 import com.amazonaws.services.iot.client.AWSIotException;
@@ -25,6 +28,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
@@ -67,8 +72,36 @@ public class DeployTaskHandler implements TaskHandler
     return true;
   }
 
+  /**
+   * @return The bundles to install
+   */
+  @Override
+  public Set<String> getResources(Task task)
+  {
+    Set<String> resources = new HashSet<>();
+    for (InstallBundle installBundle : ((NewDeployTask) task).installs)
+      resources.add(TaskEngine.bundle(installBundle.symbolicName));
+    return resources;
+  }
+
+  @Override
+  public TaskPriority getPriority(Task task)
+  {
+    return TaskPriority.BULK;
+  }
+
   @Override
   public TaskResult execute(Task task)
+  {
+    return execute(task, CancellationToken.NONE);
+  }
+
+  /**
+   * Checks for cancellation before every bundle, a cancellation during a
+   * download closes its connection.
+   */
+  @Override
+  public TaskResult execute(Task task, CancellationToken token)
   {
 
     BundleTaskResult result = new BundleTaskResult();
@@ -83,7 +116,8 @@ public class DeployTaskHandler implements TaskHandler
     {
       for (InstallBundle installBundle : newDeployTask.installs)
       {
-        installDependency(installBundle, newDeployTask);
+        token.throwIfCancelled();
+        installDependency(installBundle, newDeployTask, token);
       }
       result.setStatus(TaskStatus.SUCCEEDED);
     }
@@ -92,6 +126,11 @@ public class DeployTaskHandler implements TaskHandler
       result.setStatus(TaskStatus.FAILED);
       result.setMessage(e.getMessage());
     }
+    catch (CancellationToken.CancelledException e)
+    {
+      result.setStatus(e.getReason());
+      result.setMessage(e.getMessage());
+    }
     //installDependency(deployTask.deploymentPlan.requiredDependencies.get(0), deployTask);
 
     return result;
@@ -100,7 +139,8 @@ public class DeployTaskHandler implements TaskHandler
   // TODO Add input stream closing
   // TODO handle update bundle if it is exists and has lower version
   private void installDependency(InstallBundle installBundle,
-                                 NewDeployTask newDeployTask)
+                                 NewDeployTask newDeployTask,
+                                 CancellationToken token)
     throws
     DeployTaskException
   {
@@ -121,6 +161,8 @@ public class DeployTaskHandler implements TaskHandler
       SignUrlResponse response = getSignUrlResponse(signUrlRequest);
       URL url = new URL(response.signedUrl);
       HttpURLConnection con = (HttpURLConnection) url.openConnection();
+      // Closing the connection aborts a blocked download
+      Runnable abort = token.onCancel(con::disconnect);
       try
       {
         //con.setRequestProperty("token", token);
@@ -144,6 +186,7 @@ public class DeployTaskHandler implements TaskHandler
       }
       finally
       {
+        abort.run();
         con.disconnect();
       }
     }
@@ -0,0 +1,295 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.task.handler;
+
+import com.aicas.edp.client.api.SensorSource;
+import com.aicas.edp.client.common.task.SensorTask;
+import com.aicas.edp.client.common.task.SensorTaskResult;
+import com.aicas.edp.client.common.task.Task;
+import com.aicas.edp.client.common.task.TaskResult;
+import com.aicas.edp.client.common.task.TaskStatus;
+import com.aicas.edp.client.iot.TopicRouter;
+import com.aicas.edp.client.sensor.SensorConfig;
+import com.aicas.edp.client.sensor.SensorSession;
+import com.aicas.edp.client.task.TaskPriority;
+import com.aicas.edp.client.util.Context;
+import com.amazonaws.services.iot.client.AWSIotMessage;
+import com.amazonaws.services.iot.client.AWSIotQos;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Samples the {@link SensorSource} services registered by local bundles
+ * and publishes the samples on the configured telemetry topic, see
+ * {@link com.aicas.edp.client.util.Configuration#getSensorTelemetryTopic()}.
+ * START begins a sampling session, STOP ends it after publishing the
+ * buffered samples, LIST reports the available sensors. One session runs
+ * at a time.
+ */
+@Slf4j
+public class SensorTaskHandler implements TaskHandler
+{
+  private static final long STOP_TIMEOUT_MS = 5000;
+  private final Context context;
+  private final ObjectMapper mapper = new ObjectMapper();
+  private SensorSession session;
+  private List<ServiceReference<SensorSource>> references =
+    Collections.emptyList();
+  private String sessionConfig;
+
+  public SensorTaskHandler(Context context)
+  {
+    this.context = context;
+    log.trace("SensorTaskHandler created");
+  }
+
+  @Override
+  public boolean isValid(Task task)
+  {
+    if (!(task instanceof SensorTask))
+    {
+      log.error("Validation failed: Task {} is not instance of SensorTask",
+                task.getClass());
+      return false;
+    }
+    SensorTask sensorTask = (SensorTask) task;
+    if (sensorTask.getAction() == null)
+    {
+      log.error("Validation failed: SensorTask without action");
+      return false;
+    }
+    if (sensorTask.getAction() == SensorTask.ActionType.START)
+    {
+      try
+      {
+        return parseConfig(sensorTask.getConfig()).isValid();
+      }
+      catch (JsonProcessingException e)
+      {
+        log.error("Validation failed: Invalid sensor config", e);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Sampling touches no bundle.
+   */
+  @Override
+  public Set<String> getResources(Task task)
+  {
+    return Collections.emptySet();
+  }
+
+  @Override
+  public TaskPriority getPriority(Task task)
+  {
+    return ((SensorTask) task).getAction() == SensorTask.ActionType.LIST ?
+      TaskPriority.INTERACTIVE : TaskPriority.CONTROL;
+  }
+
+  @Override
+  public synchronized TaskResult execute(Task task)
+  {
+    SensorTask sensorTask = (SensorTask) task;
+    SensorTaskResult result = new SensorTaskResult();
+    result.setTaskId(task.getId());
+    try
+    {
+      switch (sensorTask.getAction())
+      {
+      case START:
+        start(sensorTask, result);
+        break;
+      case STOP:
+        stop(result);
+        break;
+      case LIST:
+        list(result);
+        break;
+      default:
+        result.setStatus(TaskStatus.REJECTED);
+        result.setMessage("Unsupported sensor action " + sensorTask.getAction());
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      result.setStatus(TaskStatus.FAILED);
+      result.setMessage("Interrupted");
+    }
+    catch (Exception e)
+    {
+      log.error("Failed to execute sensor action {}", sensorTask.getAction(),
+                e);
+      result.setStatus(TaskStatus.FAILED);
+      result.setMessage(e.getMessage());
+    }
+    return result;
+  }
+
+  @Override
+  public synchronized void shutdown()
+  {
+    try
+    {
+      stopSession();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void start(SensorTask task, SensorTaskResult result)
+    throws
+    JsonProcessingException,
+    InvalidSyntaxException
+  {
+    if (session != null)
+    {
+      result.setStatus(TaskStatus.REJECTED);
+      result.setMessage("Sampling is running already");
+      result.setConfig(sessionConfig);
+      return;
+    }
+    SensorConfig config = parseConfig(task.getConfig());
+    BundleContext bundleContext = context.getBundleContext();
+    List<ServiceReference<SensorSource>> used = new ArrayList<>();
+    List<SensorSource> sources = new ArrayList<>();
+    for (ServiceReference<SensorSource> reference :
+      bundleContext.getServiceReferences(SensorSource.class, null))
+    {
+      SensorSource source = bundleContext.getService(reference);
+      if (source == null)
+        continue;
+      if (config.sensors == null || config.sensors.isEmpty() ||
+          config.sensors.contains(source.getName()))
+      {
+        used.add(reference);
+        sources.add(source);
+      }
+      else
+      {
+        bundleContext.ungetService(reference);
+      }
+    }
+    if (sources.isEmpty())
+    {
+      result.setStatus(TaskStatus.REJECTED);
+      result.setMessage("No matching sensors");
+      return;
+    }
+    String topic = context.getConfiguration().getSensorTelemetryTopic();
+    TopicRouter topicRouter = context.getIotManager().getTopicRouter();
+    if (topicRouter != null && topicRouter.covers(topic))
+      log.warn("Sensor samples on {} are received back by the client", topic);
+    session = new SensorSession(config, sources, payload ->
+      context.getIotManager().publish(
+        new AWSIotMessage(topic, AWSIotQos.QOS0, payload)));
+    references = used;
+    sessionConfig = mapper.writeValueAsString(config);
+    session.start();
+    result.setStatus(TaskStatus.SUCCEEDED);
+    result.setConfig(sessionConfig);
+    result.setSensors(names(sources));
+  }
+
+  private void stop(SensorTaskResult result)
+    throws
+    InterruptedException
+  {
+    if (session == null)
+    {
+      result.setStatus(TaskStatus.REJECTED);
+      result.setMessage("Sampling is not running");
+      return;
+    }
+    result.setConfig(sessionConfig);
+    result.setMessage(stopSession());
+    result.setStatus(TaskStatus.SUCCEEDED);
+  }
+
+  private void list(SensorTaskResult result)
+    throws
+    InvalidSyntaxException
+  {
+    BundleContext bundleContext = context.getBundleContext();
+    List<String> names = new ArrayList<>();
+    for (ServiceReference<SensorSource> reference :
+      bundleContext.getServiceReferences(SensorSource.class, null))
+    {
+      SensorSource source = bundleContext.getService(reference);
+      if (source == null)
+        continue;
+      try
+      {
+        names.add(source.getName());
+      }
+      finally
+      {
+        bundleContext.ungetService(reference);
+      }
+    }
+    result.setSensors(String.join(",", names));
+    if (session != null)
+    {
+      result.setConfig(sessionConfig);
+      result.setMessage("Sampling: " + session.getStatistics());
+    }
+    result.setStatus(TaskStatus.SUCCEEDED);
+  }
+
+  /**
+   * @return Counters of the stopped session, null if none was running
+   */
+  private String stopSession()
+    throws
+    InterruptedException
+  {
+    if (session == null)
+      return null;
+    try
+    {
+      session.stop(STOP_TIMEOUT_MS);
+      return session.getStatistics();
+    }
+    finally
+    {
+      for (ServiceReference<SensorSource> reference : references)
+        context.getBundleContext().ungetService(reference);
+      references = Collections.emptyList();
+      session = null;
+      sessionConfig = null;
+    }
+  }
+
+  private SensorConfig parseConfig(String config)
+    throws
+    JsonProcessingException
+  {
+    if (config == null || config.trim().isEmpty())
+      return new SensorConfig();
+    return mapper.readValue(config, SensorConfig.class);
+  }
+
+  private static String names(List<SensorSource> sources)
+  {
+    List<String> names = new ArrayList<>();
+    for (SensorSource source : sources)
+      names.add(source.getName());
+    return String.join(",", names);
+  }
+}
@@ -6,11 +6,54 @@ package com.aicas.edp.client.task.handler;
 
 import com.aicas.edp.client.common.task.Task;
 import com.aicas.edp.client.common.task.TaskResult;
+import com.aicas.edp.client.task.CancellationToken;
+import com.aicas.edp.client.task.TaskEngine;
+import com.aicas.edp.client.task.TaskPriority;
+
+import java.util.Collections;
+import java.util.Set;
 
 public interface TaskHandler
 {
 
   TaskResult execute(Task task);
 
+  /**
+   * Executes a task that may be cancelled, e.g. when it exceeds its
+   * deadline. Long running handlers check the token and register hooks
+   * aborting blocking I/O.
+   * @return By default the result of {@link #execute(Task)}
+   */
+  default TaskResult execute(Task task, CancellationToken token)
+  {
+    return execute(task);
+  }
+
   boolean isValid(Task task);
+
+  /**
+   * Resources the task touches, tasks with overlapping resources do not run
+   * concurrently.
+   * @return By default the whole framework, the task runs alone
+   */
+  default Set<String> getResources(Task task)
+  {
+    return Collections.singleton(TaskEngine.FRAMEWORK);
+  }
+
+  /**
+   * @return Scheduling class of the task, by default a state change
+   */
+  default TaskPriority getPriority(Task task)
+  {
+    return TaskPriority.CONTROL;
+  }
+
+  /**
+   * Releases what the handler keeps beyond a single task, e.g. running
+   * threads. Called when the client shuts down.
+   */
+  default void shutdown()
+  {
+  }
 }
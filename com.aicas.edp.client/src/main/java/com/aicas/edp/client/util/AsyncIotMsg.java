@@ -32,6 +32,11 @@ public class AsyncIotMsg extends AWSIotMessage
     super(topic, qos, payload);
   }
 
+  public AsyncIotMsg(String topic, AWSIotQos qos, byte[] payload)
+  {
+    super(topic, qos, payload);
+  }
+
   @Override
   public void onSuccess()
   {
@@ -5,10 +5,14 @@
 package com.aicas.edp.client.util;
 
 import com.aicas.edp.client.Activator;
+import com.aicas.edp.client.common.VMAccelerationInfo;
+import com.aicas.edp.client.common.task.TaskType;
+import com.aicas.edp.client.iot.InboundDispatcher;
 import lombok.extern.slf4j.Slf4j;
 
 import java.net.URL;
 import java.security.KeyStore;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 import static com.aicas.edp.client.util.Util.fileToURL;
@@ -25,18 +29,81 @@ public class Configuration
   private final static String KEYSTORE = "edp.client.keystore";
   private final static String KEYSTORE_PASS = "edp.client.keystore-password";
   private final static String ENDPOINT = "edp.client.iot-endpoint";
+  private final static String PUBLISH_QUEUE_CAPACITY =
+    "edp.client.publish.queue-capacity";
+  private final static String PUBLISH_BATCH_SIZE =
+    "edp.client.publish.batch-size";
+  private final static String PUBLISH_BATCH_INTERVAL =
+    "edp.client.publish.batch-interval-ms";
+  private final static String TOPIC_ROUTER_ENABLED =
+    "edp.client.topic-router.enabled";
+  private final static String INBOUND_WORKERS = "edp.client.inbound.workers";
+  private final static String INBOUND_QUEUE_CAPACITY =
+    "edp.client.inbound.queue-capacity";
+  private final static String INBOUND_OVERFLOW_POLICY =
+    "edp.client.inbound.overflow-policy";
+  private final static String SHADOW_LOW_PRIORITY_INTERVAL =
+    "edp.client.shadow.low-priority-interval-ms";
+  private final static String SHADOW_MAX_BACKOFF =
+    "edp.client.shadow.max-backoff-ms";
+  private final static String SHADOW_PARTITIONS_ENABLED =
+    "edp.client.shadow.partitions.enabled";
+  private final static String SHADOW_OFFLINE_TIMEOUT =
+    "edp.client.shadow.offline-timeout-ms";
+  private final static String SHADOW_RECONCILE_INTERVAL =
+    "edp.client.shadow.reconcile-interval-ms";
+  private final static String TASK_RESULTS_MAX_COUNT =
+    "edp.client.task-results.max-count";
+  private final static String TASK_RESULTS_MAX_BYTES =
+    "edp.client.task-results.max-bytes";
+  private final static String TASK_LEDGER_SIZE =
+    "edp.client.task-ledger.max-entries";
+  private final static String TASK_WORKERS = "edp.client.task.workers";
+  private final static String TASK_AGING = "edp.client.task.aging-ms";
+  private final static String TASK_COALESCE_WINDOW =
+    "edp.client.task.coalesce-window-ms";
+  private final static String TASK_QUEUE_SIZE = "edp.client.task.queue-size";
+  private final static String TASK_TIMEOUT = "edp.client.task.timeout-ms";
+  private final static String METRICS_LOG_INTERVAL =
+    "edp.client.metrics.log-interval-ms";
+  private final static String JOB_PARALLELISM = "edp.client.job.parallelism";
+  private final static String SENSOR_TELEMETRY_TOPIC =
+    "edp.client.sensor.telemetry-topic";
+  private final static String OUTBOX_ENABLED = "edp.client.outbox.enabled";
+  private final static String OUTBOX_SEGMENT_SIZE =
+    "edp.client.outbox.segment-size";
+  private final static String OUTBOX_MAX_BYTES = "edp.client.outbox.max-bytes";
+  private final static String OUTBOX_TTL = "edp.client.outbox.ttl-ms";
+  private final static String OUTBOX_TOPIC_TTLS =
+    "edp.client.outbox.topic-ttls";
+  private final static String OUTBOX_TELEMETRY_MAX_BYTES =
+    "edp.client.outbox.telemetry.max-bytes";
+  private final static long TELEMETRY_TTL_MS = 10 * 60 * 1000;
   private final Map<String, String> properties;
-  private final KeyStore keyStore;
-  private final CertInfo certInfo;
+  private volatile KeyStore keyStore;
+  private volatile CertInfo certInfo;
 
   public Configuration(Map<String, String> properties)
   {
     this.properties = properties;
-    keyStore = readKeyStore(getKeystoreURL(), getKeystorePassword());
-    certInfo = parseCertInfo(keyStore);
     log.trace("Configuration Manager created");
   }
 
+  /**
+   * Reads the keystore and the device identity from its certificate.
+   * Runs on the startup thread, settings depending on the certificate
+   * are only available afterwards.
+   */
+  public synchronized void load()
+  {
+    if (keyStore != null)
+      return;
+    KeyStore store = readKeyStore(getKeystoreURL(), getKeystorePassword());
+    certInfo = parseCertInfo(store);
+    keyStore = store;
+    log.trace("Keystore loaded");
+  }
+
   public String getEndpoint()
   {
     log.trace("Reading endpoint from framework properties");
@@ -122,5 +189,364 @@ public class Configuration
     return this.certInfo.thingName;
   }
 
+  public int getPublishQueueCapacity()
+  {
+    return getIntProperty(PUBLISH_QUEUE_CAPACITY, 256);
+  }
+
+  public int getPublishBatchSize()
+  {
+    return getIntProperty(PUBLISH_BATCH_SIZE, 16);
+  }
+
+  public int getPublishBatchIntervalMs()
+  {
+    return getIntProperty(PUBLISH_BATCH_INTERVAL, 50);
+  }
+
+  /**
+   * Whether listeners share one wildcard subscription per topic prefix.
+   * Can be switched off for devices whose policy does not allow wildcard
+   * subscriptions.
+   * @return true if the topic router is used
+   */
+  public boolean isTopicRouterEnabled()
+  {
+    return Boolean.parseBoolean(getProperty(TOPIC_ROUTER_ENABLED, "true"));
+  }
+
+  public int getInboundWorkers()
+  {
+    return getIntProperty(INBOUND_WORKERS, 2);
+  }
+
+  public int getInboundQueueCapacity()
+  {
+    return getIntProperty(INBOUND_QUEUE_CAPACITY, 64);
+  }
+
+  /**
+   * @return Policy of a full inbound queue, by default the oldest message is
+   * dropped, a newer delta supersedes it. BLOCK stalls the MQTT callback
+   * thread and has to be configured explicitly.
+   */
+  public InboundDispatcher.OverflowPolicy getInboundOverflowPolicy()
+  {
+    String value = getProperty(INBOUND_OVERFLOW_POLICY, null);
+    if (value == null)
+    {
+      return InboundDispatcher.OverflowPolicy.DROP_OLDEST;
+    }
+    try
+    {
+      return InboundDispatcher.OverflowPolicy.valueOf(value.trim());
+    }
+    catch (IllegalArgumentException e)
+    {
+      log.warn("Invalid value '{}' for {}, using DROP_OLDEST", value,
+               INBOUND_OVERFLOW_POLICY);
+      return InboundDispatcher.OverflowPolicy.DROP_OLDEST;
+    }
+  }
+
+  /**
+   * @return Minimum distance of shadow updates that only carry transient
+   * changes, e.g. bundles starting or stopping
+   */
+  public long getShadowLowPriorityIntervalMs()
+  {
+    return getLongProperty(SHADOW_LOW_PRIORITY_INTERVAL, 10000);
+  }
+
+  public long getShadowMaxBackoffMs()
+  {
+    return getLongProperty(SHADOW_MAX_BACKOFF, 60000);
+  }
+
+  /**
+   * @return How long a disconnect waits for the cloud to acknowledge the
+   * offline update
+   */
+  public long getShadowOfflineTimeoutMs()
+  {
+    return getLongProperty(SHADOW_OFFLINE_TIMEOUT, 5000);
+  }
+
+  /**
+   * @return Mean distance of the checks whether the cloud reported state
+   * matches the local one, 0 disables them
+   */
+  public long getShadowReconcileIntervalMs()
+  {
+    return getLongProperty(SHADOW_RECONCILE_INTERVAL, 15 * 60 * 1000);
+  }
+
+  /**
+   * Whether bundles and task results are reported in the named shadows
+   * "inventory" and "tasks" instead of the classic shadow. The backend has
+   * to read them from there.
+   * @return true if the reported state is partitioned
+   */
+  public boolean isShadowPartitioningEnabled()
+  {
+    return Boolean.parseBoolean(getProperty(SHADOW_PARTITIONS_ENABLED,
+                                            "false"));
+  }
+
+  /**
+   * @return Maximum number of task results kept in the reported shadow
+   */
+  public int getTaskResultsMaxCount()
+  {
+    return getIntProperty(TASK_RESULTS_MAX_COUNT, 100);
+  }
+
+  /**
+   * @return Maximum serialized size of task results in the reported shadow
+   */
+  public long getTaskResultsMaxBytes()
+  {
+    return getLongProperty(TASK_RESULTS_MAX_BYTES, 32 * 1024);
+  }
+
+  /**
+   * @return Number of processed task ids remembered across restarts
+   */
+  public int getTaskLedgerSize()
+  {
+    return getIntProperty(TASK_LEDGER_SIZE, 10000);
+  }
+
+  /**
+   * @return Number of task workers the bulkheads share. By default one per
+   * core, a JamaicaVM without multicore support runs on one core only.
+   */
+  public int getTaskWorkers()
+  {
+    int workers = getIntProperty(TASK_WORKERS, 0);
+    if (workers > 0)
+      return workers;
+    VMAccelerationInfo vmInfo = JamaicaVmInfo.getVmAccelerationInfo();
+    return vmInfo != null && Boolean.FALSE.equals(vmInfo.multicore) ?
+      1 : Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * Workers of a bulkhead, configured with
+   * {@code edp.client.task.workers.<bulkhead>}, e.g.
+   * {@code edp.client.task.workers.deploy}.
+   * @param bulkheads Number of bulkheads sharing {@link #getTaskWorkers()}
+   * @return By default an equal share of {@link #getTaskWorkers()}, at
+   * least one so that the bulkhead stays isolated
+   */
+  public int getTaskWorkers(String bulkhead, int bulkheads)
+  {
+    int workers = getIntProperty(TASK_WORKERS + "." + bulkhead, 0);
+    if (workers > 0)
+      return workers;
+    return Math.max(1, getTaskWorkers() / Math.max(1, bulkheads));
+  }
+
+  /**
+   * Waiting tasks a bulkhead accepts before rejecting further ones,
+   * configured with {@code edp.client.task.queue-size} and
+   * {@code edp.client.task.queue-size.<bulkhead>}.
+   */
+  public int getTaskQueueSize(String bulkhead)
+  {
+    int queueSize = getIntProperty(TASK_QUEUE_SIZE, 64);
+    return getIntProperty(TASK_QUEUE_SIZE + "." + bulkhead, queueSize);
+  }
+
+  /**
+   * @return Waiting time that raises a queued task by one priority class
+   */
+  public long getTaskAgingMs()
+  {
+    return getLongProperty(TASK_AGING, 30000);
+  }
+
+  /**
+   * @return How long the result of a read-only task is served to identical
+   * tasks, 0 to share executions in flight only
+   */
+  public long getTaskCoalesceWindowMs()
+  {
+    return getLongProperty(TASK_COALESCE_WINDOW, 2000);
+  }
+
+  /**
+   * @return Interval of the metrics summaries in the log, 0 to disable them
+   */
+  public long getMetricsLogIntervalMs()
+  {
+    return getLongProperty(METRICS_LOG_INTERVAL, 5 * 60 * 1000);
+  }
+
+  /**
+   * Deadline of a task from its start, configured per task type with
+   * {@code edp.client.task.timeout-ms.<type>}, e.g.
+   * {@code edp.client.task.timeout-ms.new-deploy-task}.
+   * @return Deadline in ms, 0 for none
+   */
+  public long getTaskTimeoutMs(TaskType type)
+  {
+    boolean deploy = type == TaskType.NEW_DEPLOY_TASK ||
+                     type == TaskType.DEPLOY_TASK;
+    long timeout = getLongProperty(TASK_TIMEOUT,
+                                   deploy ? 15 * 60 * 1000 : 5 * 60 * 1000);
+    if (type == null)
+      return timeout;
+    return getLongProperty(TASK_TIMEOUT + "." + type.getName(), timeout);
+  }
+
+  /**
+   * @return Maximum number of tasks of a job running at the same time,
+   * by default the number of task workers
+   */
+  public int getJobParallelism()
+  {
+    int parallelism = getIntProperty(JOB_PARALLELISM, 0);
+    return parallelism > 0 ? parallelism : getTaskWorkers();
+  }
+
+  /**
+   * @return Topic of the sensor samples. By default outside the common
+   * topic prefix, the client subscribes to that prefix and would receive
+   * its own samples.
+   */
+  public String getSensorTelemetryTopic()
+  {
+    return getProperty(SENSOR_TELEMETRY_TOPIC,
+                       "telemetry/" + getThingName() + "/sensors");
+  }
+
+  public boolean isOutboxEnabled()
+  {
+    return Boolean.parseBoolean(getProperty(OUTBOX_ENABLED, "true"));
+  }
+
+  public int getOutboxSegmentSize()
+  {
+    return getIntProperty(OUTBOX_SEGMENT_SIZE, 256 * 1024);
+  }
+
+  public long getOutboxMaxBytes()
+  {
+    return getLongProperty(OUTBOX_MAX_BYTES, 8L * 1024 * 1024);
+  }
+
+  public long getOutboxTtlMs()
+  {
+    return getLongProperty(OUTBOX_TTL, 24L * 60 * 60 * 1000);
+  }
+
+  /**
+   * @return Cap of the separate outbox for sensor telemetry, so samples
+   * never evict task results or job updates
+   */
+  public long getOutboxTelemetryMaxBytes()
+  {
+    return getLongProperty(OUTBOX_TELEMETRY_MAX_BYTES, 1024L * 1024);
+  }
+
+  /**
+   * Time to live of stored messages per topic filter, configured as
+   * {@code filter=millis} pairs separated by ';'. Topic filters may use MQTT
+   * wildcards, the first matching filter wins. Sensor telemetry is stale
+   * quickly and expires after 10 minutes unless configured otherwise.
+   * @return Topic filter to TTL mapping in configuration order
+   */
+  public Map<String, Long> getOutboxTopicTtls()
+  {
+    Map<String, Long> ttls = new LinkedHashMap<>();
+    String value = getProperty(OUTBOX_TOPIC_TTLS, null);
+    if (Util.isEmpty(value))
+    {
+      ttls.put(getSensorTelemetryTopic(), TELEMETRY_TTL_MS);
+      return ttls;
+    }
+    for (String entry : value.split(";"))
+    {
+      int separator = entry.lastIndexOf('=');
+      if (separator <= 0)
+      {
+        log.warn("Invalid outbox TTL entry '{}'", entry);
+        continue;
+      }
+      try
+      {
+        ttls.put(entry.substring(0, separator).trim(),
+                 Long.parseLong(entry.substring(separator + 1).trim()));
+      }
+      catch (NumberFormatException e)
+      {
+        log.warn("Invalid outbox TTL entry '{}'", entry);
+      }
+    }
+    ttls.putIfAbsent(getSensorTelemetryTopic(), TELEMETRY_TTL_MS);
+    return ttls;
+  }
+
+  /**
+   * Reads a setting, system properties take precedence over classpath
+   * properties.
+   * @param key Property name
+   * @param defaultValue Value used if the property is absent
+   * @return Configured value
+   */
+  private String getProperty(String key, String defaultValue)
+  {
+    String value = System.getProperty(key);
+    if (Util.isEmpty(value))
+    {
+      value = properties.get(key);
+    }
+    return Util.isEmpty(value) ? defaultValue : value;
+  }
+
+  private long getLongProperty(String key, long defaultValue)
+  {
+    String value = getProperty(key, null);
+    if (value == null)
+    {
+      return defaultValue;
+    }
+    try
+    {
+      return Long.parseLong(value.trim());
+    }
+    catch (NumberFormatException e)
+    {
+      log.warn("Invalid value '{}' for {}, using {}", value, key,
+               defaultValue);
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Reads an integer setting.
+   * @param key Property name
+   * @param defaultValue Value used if the property is absent or invalid
+   * @return Configured value
+   */
+  private int getIntProperty(String key, int defaultValue)
+  {
+    String value = getProperty(key, null);
+    if (value == null)
+    {
+      return defaultValue;
+    }
+    try
+    {
+      return Integer.parseInt(value.trim());
+    }
+    catch (NumberFormatException e)
+    {
+      log.warn("Invalid value '{}' for {}, using {}", value, key,
+               defaultValue);
+      return defaultValue;
+    }
+  }
 
 }
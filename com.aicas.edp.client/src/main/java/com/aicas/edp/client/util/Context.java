@@ -14,11 +14,24 @@ import com.amazonaws.services.iot.client.AWSIotException;
 import lombok.extern.slf4j.Slf4j;
 import org.osgi.framework.BundleContext;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class Context
 {
+  private static final long STARTUP_STOP_TIMEOUT_MS = 10000;
+  private static final long CONNECT_RETRY_DELAY_MS = 1000;
+  private static final long MAX_CONNECT_RETRY_DELAY_MS = 5 * 60 * 1000;
   private final BundleContext bundleContext;
   private final Configuration configuration;
   private final IotManager iotManager;
@@ -27,6 +40,16 @@ public class Context
   private final BundleManager bundleManager;
   private final JobManager jobManager;
   private final EdpClientApiService edpClientApi;
+  private final ExecutorService startupExecutor =
+    Executors.newSingleThreadExecutor(r -> new Thread(r, "edp-client-startup"));
+  private final CompletableFuture<Void> ready = new CompletableFuture<>();
+  // Managers in start order
+  private final List<Manager> managers;
+  // Guards the lifecycle steps, stop waits for the step in progress
+  private final Object lifecycle = new Object();
+  private final Deque<Manager> initializedManagers = new ArrayDeque<>();
+  private final Deque<Manager> connectedManagers = new ArrayDeque<>();
+  private boolean stopped;
 
   public Context(Map<String, String> properties, BundleContext bundleContext)
   {
@@ -38,50 +61,228 @@ public class Context
     jobManager = new JobManager(this);
     shadowManager = new ShadowManager(this);
     bundleManager = new BundleManager(this);
+    managers = Arrays.asList(iotManager, shadowManager, bundleManager,
+                             taskManager, jobManager);
 
     this.edpClientApi = new EdpClientApiService(this);
   }
 
+  /**
+   * Registers the services and starts the client in the background, the
+   * calling (framework) thread does not wait for keystore, shadow or broker.
+   */
+  public void start()
+  {
+    edpClientApi.init();
+    startupExecutor.execute(this::startup);
+    startupExecutor.shutdown();
+  }
+
+  /**
+   * Stops the client. A startup still in progress is cancelled, the step it
+   * is running is finished before the managers that got that far are torn
+   * down.
+   */
+  public void stop()
+    throws
+    AWSIotException
+  {
+    synchronized (lifecycle)
+    {
+      stopped = true;
+    }
+    // Interrupts a connect backoff
+    startupExecutor.shutdownNow();
+    try
+    {
+      if (!startupExecutor.awaitTermination(STARTUP_STOP_TIMEOUT_MS,
+                                            TimeUnit.MILLISECONDS))
+        log.warn("Startup did not finish in time, tearing down what started");
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (lifecycle)
+    {
+      try
+      {
+        disconnect();
+      }
+      finally
+      {
+        shutdown();
+      }
+    }
+  }
+
+  /**
+   * @return Completes when startup has finished
+   */
+  public CompletionStage<Void> ready()
+  {
+    return ready;
+  }
+
   public void initialize()
   {
     log.trace("initializing");
-    iotManager.initialize();
-    shadowManager.initialize();
-    bundleManager.initialize();
-    taskManager.initialize();
-    jobManager.initialize();
-    edpClientApi.init();
+    for (Manager manager : managers)
+    {
+      synchronized (lifecycle)
+      {
+        if (stopped)
+          throw new CancellationException("Client stopped during startup");
+        manager.initialize();
+        initializedManagers.push(manager);
+      }
+    }
   }
 
   public void connect()
     throws
     AWSIotException
   {
-    iotManager.connect();
-    shadowManager.connect();
-    bundleManager.connect();
-    taskManager.connect();
-    jobManager.connect();
+    for (Manager manager : managers)
+    {
+      synchronized (lifecycle)
+      {
+        if (stopped)
+          throw new CancellationException("Client stopped during startup");
+        try
+        {
+          manager.connect();
+        }
+        catch (AWSIotException | RuntimeException e)
+        {
+          // Undo a partial connect before the next attempt
+          disconnect(manager);
+          throw e;
+        }
+        connectedManagers.push(manager);
+      }
+    }
   }
 
+  /**
+   * Disconnects the connected managers in reverse order.
+   */
   public void disconnect()
     throws
     AWSIotException
   {
-    jobManager.disconnect();
-    taskManager.disconnect();
-    bundleManager.disconnect();
-    shadowManager.disconnect();
-    iotManager.disconnect();
+    synchronized (lifecycle)
+    {
+      AWSIotException failure = null;
+      while (!connectedManagers.isEmpty())
+      {
+        try
+        {
+          connectedManagers.pop().disconnect();
+        }
+        catch (AWSIotException e)
+        {
+          log.error("Failed to disconnect manager", e);
+          failure = e;
+        }
+        catch (RuntimeException e)
+        {
+          log.error("Failed to disconnect manager", e);
+        }
+      }
+      if (failure != null)
+        throw failure;
+    }
   }
 
+  /**
+   * Shuts the initialized managers down in reverse order.
+   */
   public void shutdown()
   {
-    jobManager.shutdown();
-    taskManager.shutdown();
-    bundleManager.shutdown();
-    shadowManager.shutdown();
-    iotManager.shutdown();
+    synchronized (lifecycle)
+    {
+      while (!initializedManagers.isEmpty())
+      {
+        try
+        {
+          initializedManagers.pop().shutdown();
+        }
+        catch (RuntimeException e)
+        {
+          log.error("Failed to shut down manager", e);
+        }
+      }
+    }
+  }
+
+  private void startup()
+  {
+    try
+    {
+      configuration.load();
+      initialize();
+      connectWithRetry();
+      log.info("EDP client started");
+      ready.complete(null);
+    }
+    catch (CancellationException | InterruptedException e)
+    {
+      log.debug("EDP client stopped during startup");
+      ready.completeExceptionally(e);
+    }
+    catch (Throwable t)
+    {
+      log.error("EDP client startup failed", t);
+      ready.completeExceptionally(t);
+    }
+  }
+
+  /**
+   * Connects, a failed attempt disconnects what it connected and is retried
+   * with exponential backoff until the client is stopped.
+   */
+  private void connectWithRetry()
+    throws
+    InterruptedException
+  {
+    long delayMs = CONNECT_RETRY_DELAY_MS;
+    while (true)
+    {
+      try
+      {
+        connect();
+        return;
+      }
+      catch (AWSIotException | RuntimeException e)
+      {
+        if (e instanceof CancellationException)
+          throw (CancellationException) e;
+        log.error("Failed to connect, retrying in {} ms", delayMs, e);
+      }
+      try
+      {
+        disconnect();
+      }
+      catch (AWSIotException e)
+      {
+        log.debug("Failed to disconnect after failed connect", e);
+      }
+      Thread.sleep(delayMs);
+      delayMs = Math.min(MAX_CONNECT_RETRY_DELAY_MS, delayMs * 2);
+    }
+  }
+
+  private static void disconnect(Manager manager)
+  {
+    try
+    {
+      manager.disconnect();
+    }
+    catch (AWSIotException | RuntimeException e)
+    {
+      log.debug("Failed to disconnect partially connected manager", e);
+    }
   }
 
   public Configuration getConfiguration()
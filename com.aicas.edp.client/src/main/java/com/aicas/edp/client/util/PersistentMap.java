@@ -0,0 +1,351 @@
+/*------------------------------------------------------------------------*
+ * Copyright 2021-2024, aicas GmbH; all rights reserved.
+ * This header, including copyright notice, may not be altered or removed.
+ *------------------------------------------------------------------------*/
+package com.aicas.edp.client.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Immutable hash map (hash array mapped trie). {@link #plus} and
+ * {@link #minus} return a new map that shares all untouched nodes with the
+ * original, so a change costs O(log32 n) instead of a full copy and readers
+ * of an older version are never affected.
+ * Null values are allowed, null keys are not.
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public final class PersistentMap<K, V>
+{
+  private static final PersistentMap<?, ?> EMPTY = new PersistentMap<>(null, 0);
+  private static final Object NOT_FOUND = new Object();
+  private static final int BITS = 5;
+  private static final int MASK = (1 << BITS) - 1;
+  private final Node root;
+  private final int size;
+
+  private PersistentMap(Node root, int size)
+  {
+    this.root = root;
+    this.size = size;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <K, V> PersistentMap<K, V> empty()
+  {
+    return (PersistentMap<K, V>) EMPTY;
+  }
+
+  public static <K, V> PersistentMap<K, V> of(Map<K, V> map)
+  {
+    PersistentMap<K, V> result = empty();
+    for (Map.Entry<K, V> entry : map.entrySet())
+    {
+      result = result.plus(entry.getKey(), entry.getValue());
+    }
+    return result;
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  public boolean isEmpty()
+  {
+    return size == 0;
+  }
+
+  public boolean containsKey(K key)
+  {
+    return root != null && root.find(0, hash(key), key) != NOT_FOUND;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(K key)
+  {
+    if (root == null)
+      return null;
+    Object value = root.find(0, hash(key), key);
+    return value == NOT_FOUND ? null : (V) value;
+  }
+
+  /**
+   * @return Map with the key mapped to the value, this map if unchanged
+   */
+  public PersistentMap<K, V> plus(K key, V value)
+  {
+    boolean[] added = new boolean[1];
+    Node base = root == null ? BitmapNode.EMPTY : root;
+    Node node = base.put(0, hash(key), key, value, added);
+    if (node == root)
+      return this;
+    return new PersistentMap<>(node, added[0] ? size + 1 : size);
+  }
+
+  /**
+   * @return Map without the key, this map if the key is absent
+   */
+  public PersistentMap<K, V> minus(K key)
+  {
+    if (root == null)
+      return this;
+    Node node = root.remove(0, hash(key), key);
+    if (node == root)
+      return this;
+    return new PersistentMap<>(node, size - 1);
+  }
+
+  @SuppressWarnings("unchecked")
+  public void forEach(BiConsumer<? super K, ? super V> action)
+  {
+    if (root != null)
+      root.forEach((BiConsumer<Object, Object>) action);
+  }
+
+  /**
+   * @return Mutable copy, e.g. for serialization
+   */
+  public Map<K, V> toMap()
+  {
+    Map<K, V> map = new HashMap<>();
+    forEach(map::put);
+    return map;
+  }
+
+  private static int hash(Object key)
+  {
+    int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  private abstract static class Node
+  {
+    abstract Object find(int shift, int hash, Object key);
+
+    abstract Node put(int shift, int hash, Object key, Object value,
+                      boolean[] added);
+
+    /**
+     * @return Node without the key, null if it became empty
+     */
+    abstract Node remove(int shift, int hash, Object key);
+
+    abstract void forEach(BiConsumer<Object, Object> action);
+  }
+
+  /**
+   * Up to 32 slots selected by 5 hash bits, a slot holds either a key and
+   * value or (with a null key) a sub node.
+   */
+  private static final class BitmapNode extends Node
+  {
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+    final int bitmap;
+    final Object[] array;
+
+    BitmapNode(int bitmap, Object[] array)
+    {
+      this.bitmap = bitmap;
+      this.array = array;
+    }
+
+    private int index(int bit)
+    {
+      return Integer.bitCount(bitmap & (bit - 1));
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key)
+    {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((bitmap & bit) == 0)
+        return NOT_FOUND;
+      int idx = index(bit);
+      Object k = array[2 * idx];
+      Object v = array[2 * idx + 1];
+      if (k == null)
+        return ((Node) v).find(shift + BITS, hash, key);
+      return key.equals(k) ? v : NOT_FOUND;
+    }
+
+    @Override
+    Node put(int shift, int hash, Object key, Object value, boolean[] added)
+    {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      int idx = index(bit);
+      if ((bitmap & bit) == 0)
+      {
+        Object[] copy = new Object[array.length + 2];
+        System.arraycopy(array, 0, copy, 0, 2 * idx);
+        copy[2 * idx] = key;
+        copy[2 * idx + 1] = value;
+        System.arraycopy(array, 2 * idx, copy, 2 * idx + 2,
+                         array.length - 2 * idx);
+        added[0] = true;
+        return new BitmapNode(bitmap | bit, copy);
+      }
+      Object k = array[2 * idx];
+      Object v = array[2 * idx + 1];
+      if (k == null)
+      {
+        Node child = ((Node) v).put(shift + BITS, hash, key, value, added);
+        return child == v ? this : with(2 * idx + 1, child);
+      }
+      if (key.equals(k))
+      {
+        return v == value ? this : with(2 * idx + 1, value);
+      }
+      added[0] = true;
+      Node child = split(shift + BITS, k, v, hash, key, value);
+      Object[] copy = array.clone();
+      copy[2 * idx] = null;
+      copy[2 * idx + 1] = child;
+      return new BitmapNode(bitmap, copy);
+    }
+
+    @Override
+    Node remove(int shift, int hash, Object key)
+    {
+      int bit = 1 << ((hash >>> shift) & MASK);
+      if ((bitmap & bit) == 0)
+        return this;
+      int idx = index(bit);
+      Object k = array[2 * idx];
+      Object v = array[2 * idx + 1];
+      if (k == null)
+      {
+        Node child = ((Node) v).remove(shift + BITS, hash, key);
+        if (child == v)
+          return this;
+        if (child != null)
+          return with(2 * idx + 1, child);
+      }
+      else if (!key.equals(k))
+      {
+        return this;
+      }
+      if (bitmap == bit)
+        return null;
+      Object[] copy = new Object[array.length - 2];
+      System.arraycopy(array, 0, copy, 0, 2 * idx);
+      System.arraycopy(array, 2 * idx + 2, copy, 2 * idx,
+                       array.length - 2 * idx - 2);
+      return new BitmapNode(bitmap ^ bit, copy);
+    }
+
+    @Override
+    void forEach(BiConsumer<Object, Object> action)
+    {
+      for (int i = 0; i < array.length; i += 2)
+      {
+        if (array[i] == null)
+          ((Node) array[i + 1]).forEach(action);
+        else
+          action.accept(array[i], array[i + 1]);
+      }
+    }
+
+    private BitmapNode with(int position, Object value)
+    {
+      Object[] copy = array.clone();
+      copy[position] = value;
+      return new BitmapNode(bitmap, copy);
+    }
+
+    private static Node split(int shift, Object k1, Object v1, int h2,
+                              Object k2, Object v2)
+    {
+      int h1 = hash(k1);
+      if (h1 == h2)
+        return new CollisionNode(h1, new Object[]{k1, v1, k2, v2});
+      boolean[] added = new boolean[1];
+      return EMPTY.put(shift, h1, k1, v1, added)
+        .put(shift, h2, k2, v2, added);
+    }
+  }
+
+  /**
+   * Keys with identical hashes.
+   */
+  private static final class CollisionNode extends Node
+  {
+    final int hash;
+    final Object[] array;
+
+    CollisionNode(int hash, Object[] array)
+    {
+      this.hash = hash;
+      this.array = array;
+    }
+
+    private int indexOf(Object key)
+    {
+      for (int i = 0; i < array.length; i += 2)
+      {
+        if (key.equals(array[i]))
+          return i;
+      }
+      return -1;
+    }
+
+    @Override
+    Object find(int shift, int hash, Object key)
+    {
+      int i = indexOf(key);
+      return i < 0 ? NOT_FOUND : array[i + 1];
+    }
+
+    @Override
+    Node put(int shift, int hash, Object key, Object value, boolean[] added)
+    {
+      if (hash != this.hash)
+      {
+        // Nest this node below a bitmap node that tells both hashes apart
+        int bit = 1 << ((this.hash >>> shift) & MASK);
+        return new BitmapNode(bit, new Object[]{null, this})
+          .put(shift, hash, key, value, added);
+      }
+      int i = indexOf(key);
+      if (i >= 0)
+      {
+        if (array[i + 1] == value)
+          return this;
+        Object[] copy = array.clone();
+        copy[i + 1] = value;
+        return new CollisionNode(hash, copy);
+      }
+      Object[] copy = new Object[array.length + 2];
+      System.arraycopy(array, 0, copy, 0, array.length);
+      copy[array.length] = key;
+      copy[array.length + 1] = value;
+      added[0] = true;
+      return new CollisionNode(hash, copy);
+    }
+
+    @Override
+    Node remove(int shift, int hash, Object key)
+    {
+      int i = indexOf(key);
+      if (i < 0)
+        return this;
+      if (array.length == 2)
+        return null;
+      Object[] copy = new Object[array.length - 2];
+      System.arraycopy(array, 0, copy, 0, i);
+      System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+      return new CollisionNode(hash, copy);
+    }
+
+    @Override
+    void forEach(BiConsumer<Object, Object> action)
+    {
+      for (int i = 0; i < array.length; i += 2)
+      {
+        action.accept(array[i], array[i + 1]);
+      }
+    }
+  }
+}